@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// A monotonic time source in nanoseconds.  The engine and the simulated devices read time
+// through this, so that they can run on a VirtualClock instead of the system clock.
+
+interface AudioClock {
+
+    long nanoTime();
+
+    static final AudioClock SYSTEM = new AudioClock() {
+        public long nanoTime()
+        {
+            return System.nanoTime();
+        }
+    };
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import android.media.AudioRecord;
+
+// AudioSource backed by an AudioRecord, which the caller creates and releases.
+
+final class AudioRecordSource implements AudioSource {
+
+    private final AudioRecord mAudioRecord;
+
+    AudioRecordSource(AudioRecord audioRecord)
+    {
+        mAudioRecord = audioRecord;
+    }
+
+    public void start()
+    {
+        mAudioRecord.startRecording();
+    }
+
+    public int read(byte[] buffer, int offset, int count)
+    {
+        return mAudioRecord.read(buffer, offset, count);
+    }
+
+    public void stop()
+    {
+        mAudioRecord.stop();
+    }
+
+}
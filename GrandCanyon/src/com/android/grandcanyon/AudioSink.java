@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// A playback device accepting interleaved 16-bit PCM, as bytes in native byte order or as shorts.
+
+interface AudioSink {
+
+    // Starts playback
+    void start();
+
+    // Writes up to count bytes from buffer at offset.  A hardware sink blocks until there is
+    // room; a simulated sink accepts what fits right now, possibly 0.
+    // Returns the number of bytes written >= 0, or < 0 on error.
+    int write(byte[] buffer, int offset, int count);
+
+    // As above, with count and the return value in samples
+    int write(short[] buffer, int offset, int count);
+
+    // Stops playback
+    void stop();
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// A capture device delivering interleaved 16-bit PCM in native byte order.
+
+interface AudioSource {
+
+    // Starts capture
+    void start();
+
+    // Reads up to count bytes into buffer at offset.  A hardware source blocks until the
+    // data is available; a simulated source returns what has been captured so far, possibly 0.
+    // Returns the number of bytes read >= 0, or < 0 on error.
+    int read(byte[] buffer, int offset, int count);
+
+    // Stops capture
+    void stop();
+
+}
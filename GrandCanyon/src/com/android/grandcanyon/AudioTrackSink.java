@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import android.media.AudioTrack;
+
+// AudioSink backed by an AudioTrack in streaming mode, which the caller creates and releases.
+
+final class AudioTrackSink implements AudioSink {
+
+    private final AudioTrack mAudioTrack;
+
+    AudioTrackSink(AudioTrack audioTrack)
+    {
+        mAudioTrack = audioTrack;
+    }
+
+    public void start()
+    {
+        mAudioTrack.play();
+    }
+
+    public int write(byte[] buffer, int offset, int count)
+    {
+        return mAudioTrack.write(buffer, offset, count);
+    }
+
+    public int write(short[] buffer, int offset, int count)
+    {
+        return mAudioTrack.write(buffer, offset, count);
+    }
+
+    public void stop()
+    {
+        mAudioTrack.stop();
+    }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// One stage of a ProcessingChain.  Processes interleaved float samples in place, nominally
+// in [-1.0, 1.0).  Called on the audio thread, so process() must not allocate or block.
+
+interface BlockProcessor {
+
+    // Short name for reports
+    String getName();
+
+    // Called once before the first process(), with the format and the largest block size.
+    // Allocate all state here.
+    void prepare(int sampleRate, int channelCount, int maxFrames);
+
+    // Processes frames frames of interleaved samples at the start of buffer, in place
+    void process(float[] buffer, int frames);
+
+}
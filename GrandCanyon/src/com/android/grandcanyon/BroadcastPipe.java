@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// Non-blocking pipe supports a single writer and any number of readers.
+// Each reader has its own cursor and sees every byte written after it was created.
+// The writer never waits for readers; a reader that falls behind is overrun,
+// and recovers independently of the others.  Memory and copy cost on the write side
+// do not depend on the number of readers.
+
+class BroadcastPipe {
+
+    private int mRear;
+    private final byte mBuffer[];
+    private volatile int mVolatileRear; // written by write(), read by all readers
+    // end of the bytes the writer may be overwriting right now; stored before copying, so that
+    // readers can validate their copies.  Best-effort only, as in Pipe.setValidateMode():
+    // without a store-store fence the first bytes copied may be visible before this is.
+    private volatile int mVolatileWriteLimit;
+    private final int mMaxBytes;
+    public static final int OVERRUN = Pipe.OVERRUN;
+
+    // maxBytes will be rounded up to a power of 2, and all slots are available. Must be >= 2.
+    BroadcastPipe(int maxBytes)
+    {
+        mMaxBytes = Pipe.roundup(maxBytes);
+        mBuffer = new byte[mMaxBytes];
+    }
+
+    // Returns the backing array, for use with the segments of obtainWrite() and obtainRead().
+    byte[] array()
+    {
+        return mBuffer;
+    }
+
+    // buffer must != null.
+    // offset must be >= 0.
+    // count is maximum number of bytes to copy, and must be >= 0.
+    // offset + count must be <= buffer.length.
+    // Returns actual number of bytes copied >= 0.
+    int write(byte[] buffer, int offset, int count)
+    {
+        if (count > mMaxBytes) {
+            count = mMaxBytes;
+        }
+        mVolatileWriteLimit = mRear + count;
+        int rear = mRear & (mMaxBytes - 1);
+        int written = mMaxBytes - rear;
+        if (written > count) {
+            written = count;
+        }
+        System.arraycopy(buffer, offset, mBuffer, rear, written);
+        if (rear + written == mMaxBytes) {
+            if ((count -= written) > rear) {
+                count = rear;
+            }
+            if (count > 0) {
+                System.arraycopy(buffer, offset + written, mBuffer, 0, count);
+                written += count;
+            }
+        }
+        mRear += written;
+        mVolatileRear = mRear;
+        return written;
+    }
+
+    // Same as Pipe.obtainWrite()
+    int obtainWrite(Pipe.Segments segments, int count)
+    {
+        if (count > mMaxBytes) {
+            count = mMaxBytes;
+        }
+        mVolatileWriteLimit = mRear + count;
+        split(mRear & (mMaxBytes - 1), count, segments);
+        return count;
+    }
+
+    // Same as Pipe.commitWrite()
+    void commitWrite(int count)
+    {
+        mRear += count;
+        mVolatileRear = mRear;
+        mVolatileWriteLimit = mRear;
+    }
+
+    // Returns a new reader, positioned at the current write position.
+    // May be called from any thread; each reader must then be used by a single thread.
+    Reader newReader()
+    {
+        return new Reader(mVolatileRear);
+    }
+
+    private void split(int index, int count, Pipe.Segments segments)
+    {
+        int first = mMaxBytes - index;
+        if (first > count) {
+            first = count;
+        }
+        segments.mOffset0 = index;
+        segments.mLength0 = first;
+        segments.mOffset1 = 0;
+        segments.mLength1 = count - first;
+    }
+
+    // The read side of a BroadcastPipe.  Readers only touch their own state and the
+    // shared ring, so adding or dropping readers never affects the writer or other readers.
+    final class Reader {
+
+        private int mFront;
+        // stored after each copy only to order the copy before the validation below, as in
+        // Pipe's validated reads
+        private volatile int mVolatileFront;
+        private volatile long mBytesOverrun; // written by reader, may be read by any thread
+        private volatile long mOverruns;     // written by reader, may be read by any thread
+
+        private Reader(int front)
+        {
+            mFront = front;
+        }
+
+        int availableToRead()
+        {
+            int rear = mVolatileRear;
+            int avail = rear - mFront;
+            if (avail > mMaxBytes) {
+                // Discard 1/16 of the most recent data in pipe to avoid another overrun immediately
+                int oldFront = mFront;
+                mFront = rear - mMaxBytes + (mMaxBytes >> 4);
+                mBytesOverrun += mFront - oldFront;
+                ++mOverruns;
+                return OVERRUN;
+            }
+            return avail;
+        }
+
+        // Same as Pipe.read(), for this reader only, except that the copy is validated:
+        // if the writer may have overwritten any of it while it was in progress, the copy
+        // is discarded and OVERRUN returned, as if the overrun had been seen before it.
+        int read(byte[] buffer, int offset, int count)
+        {
+            int avail = availableToRead();
+            if (avail <= 0) {
+                return avail;
+            }
+            final int startFront = mFront;
+            if (count > avail) {
+                count = avail;
+            }
+            int front = mFront & (mMaxBytes - 1);
+            int red = mMaxBytes - front;
+            if (red > count) {
+                red = count;
+            }
+            System.arraycopy(mBuffer, front, buffer, offset, red);
+            if (front + red == mMaxBytes) {
+                if ((count -= red) > front) {
+                    count = front;
+                }
+                if (count > 0) {
+                    System.arraycopy(mBuffer, 0, buffer, offset + red, count);
+                    red += count;
+                }
+            }
+            // The writer had not started to lap the first byte copied when the copy finished
+            mVolatileFront = startFront;
+            if (mVolatileWriteLimit - startFront > mMaxBytes) {
+                availableToRead();
+                return OVERRUN;
+            }
+            mFront += red;
+            return red;
+        }
+
+        // Same as Pipe.obtainRead(), for this reader only.
+        int obtainRead(Pipe.Segments segments, int count)
+        {
+            int avail = availableToRead();
+            if (avail <= 0) {
+                segments.mLength0 = 0;
+                segments.mLength1 = 0;
+                return avail;
+            }
+            if (count > avail) {
+                count = avail;
+            }
+            split(mFront & (mMaxBytes - 1), count, segments);
+            return count;
+        }
+
+        // Same as Pipe.commitRead(), for this reader only.
+        void commitRead(int count)
+        {
+            mFront += count;
+        }
+
+        // Discard all unread data for this reader
+        void flush()
+        {
+            mFront = mVolatileRear;
+        }
+
+        // Number of overruns seen by this reader
+        long getOverruns()
+        {
+            return mOverruns;
+        }
+
+        // Number of bytes this reader has lost to overruns
+        long getBytesOverrun()
+        {
+            return mBytesOverrun;
+        }
+
+    }
+
+}
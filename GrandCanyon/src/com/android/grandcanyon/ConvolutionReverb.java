@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// Convolution with a long impulse response, by uniformly partitioned overlap-save.
+// The input is collected into blocks of B samples, the block size of the PartitionedIr.
+// Each block is transformed once (size 2B) and pushed into a frequency-domain delay line
+// holding the spectra of the last P blocks, where P is the number of IR partitions.  The
+// output spectrum is the sum over p of block n - p times partition p, and one inverse
+// transform gives B output samples.  The work per block is two FFTs plus P (B + 1) complex
+// multiply-adds; it is the same for every block, with no occasional long partition to compute,
+// so there are no spikes.  It grows with the IR length, but only by the multiply-adds.
+// Output is delayed by B samples with respect to the input, in addition to the IR itself.
+
+final class ConvolutionReverb implements BlockProcessor {
+
+    private final PartitionedIr mIr;
+    private final float mDry;
+    private final float mWet;
+    private int mChannelCount;
+    private Fft mFft;
+
+    // Per channel: the last two input blocks, the output block being played, and the delay line
+    private float[][] mWindow;
+    private float[][] mOutput;
+    private float[][] mFdlRe;
+    private float[][] mFdlIm;
+    private int mFill;              // samples per channel in the current block so far
+    private int mFdlPosition;       // partition slot of the newest block
+
+    private float[] mAccRe;
+    private float[] mAccIm;
+    private float[] mTime;
+
+    // The IR must be at the same sample rate as the audio
+    ConvolutionReverb(PartitionedIr ir, float dry, float wet)
+    {
+        mIr = ir;
+        mDry = dry;
+        mWet = wet;
+    }
+
+    public String getName()
+    {
+        return "reverb";
+    }
+
+    public void prepare(int sampleRate, int channelCount, int maxFrames)
+    {
+        final int blockSize = mIr.mBlockSize;
+        final int fdlSize = mIr.mPartitions * mIr.mBins;
+        mChannelCount = channelCount;
+        mFft = new Fft(2 * blockSize);
+        mWindow = new float[channelCount][2 * blockSize];
+        mOutput = new float[channelCount][blockSize];
+        mFdlRe = new float[channelCount][fdlSize];
+        mFdlIm = new float[channelCount][fdlSize];
+        mAccRe = new float[mIr.mBins];
+        mAccIm = new float[mIr.mBins];
+        mTime = new float[2 * blockSize];
+        mFill = 0;
+        mFdlPosition = 0;
+    }
+
+    public void process(float[] buffer, int frames)
+    {
+        final int blockSize = mIr.mBlockSize;
+        final int channelCount = mChannelCount;
+        final float dry = mDry;
+        final float wet = mWet;
+        int done = 0;
+        while (done < frames) {
+            int run = Math.min(frames - done, blockSize - mFill);
+            for (int channel = 0; channel < channelCount; ++channel) {
+                final float[] window = mWindow[channel];
+                final float[] output = mOutput[channel];
+                int in = blockSize + mFill;
+                int out = mFill;
+                int end = (done + run) * channelCount;
+                for (int i = done * channelCount + channel; i < end; i += channelCount) {
+                    float x = buffer[i];
+                    window[in++] = x;
+                    buffer[i] = dry * x + wet * output[out++];
+                }
+            }
+            done += run;
+            mFill += run;
+            if (mFill == blockSize) {
+                for (int channel = 0; channel < channelCount; ++channel) {
+                    convolveBlock(channel);
+                }
+                mFdlPosition = mFdlPosition + 1 == mIr.mPartitions ? 0 : mFdlPosition + 1;
+                mFill = 0;
+            }
+        }
+    }
+
+    // Transforms the completed block of one channel into the delay line, and computes the
+    // next output block from the whole delay line
+    private void convolveBlock(int channel)
+    {
+        final PartitionedIr ir = mIr;
+        final int blockSize = ir.mBlockSize;
+        final int bins = ir.mBins;
+        final int partitions = ir.mPartitions;
+        final float[] window = mWindow[channel];
+        final float[] fdlRe = mFdlRe[channel];
+        final float[] fdlIm = mFdlIm[channel];
+        final float[] irRe = ir.mRe;
+        final float[] irIm = ir.mIm;
+        final float[] accRe = mAccRe;
+        final float[] accIm = mAccIm;
+
+        mFft.forward(window, fdlRe, fdlIm, mFdlPosition * bins);
+        System.arraycopy(window, blockSize, window, 0, blockSize);
+
+        for (int k = 0; k < bins; ++k) {
+            accRe[k] = 0.0f;
+            accIm[k] = 0.0f;
+        }
+        int slot = mFdlPosition;
+        for (int p = 0; p < partitions; ++p) {
+            final int x = slot * bins;
+            final int h = p * bins;
+            for (int k = 0; k < bins; ++k) {
+                float xr = fdlRe[x + k], xi = fdlIm[x + k];
+                float hr = irRe[h + k], hi = irIm[h + k];
+                accRe[k] += xr * hr - xi * hi;
+                accIm[k] += xr * hi + xi * hr;
+            }
+            slot = slot == 0 ? partitions - 1 : slot - 1;
+        }
+
+        // Overlap-save: the first half of the circular convolution is aliased, keep the second
+        mFft.inverse(accRe, accIm, 0, mTime);
+        System.arraycopy(mTime, blockSize, mOutput[channel], 0, blockSize);
+    }
+
+}
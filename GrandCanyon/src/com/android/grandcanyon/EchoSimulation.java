@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// Runs the capture -> Pipe -> playback echo engine headless, on simulated devices and a
+// VirtualClock, single-threaded and deterministic for a given seed.  Simulated time runs as
+// fast as the engine can process it, so long soak tests finish quickly and can be profiled
+// on a plain JVM.  Uses no Android classes.
+// The processing chain hands its output to the jitter buffer as floats, through a FloatPipe,
+// so that the capture is converted from 16-bit PCM once and back once, at the two devices.
+// Splices in a FloatPipe are not crossfaded; the jitter buffer keeps this one from overrunning.
+//
+// Usage: java com.android.grandcanyon.EchoSimulation
+//         [seconds [seed [driftPpm [reverb [latency [playbackRate]]]]]]
+// where reverb is true to add a ConvolutionReverb with a 3 second IR to the processing chain,
+// latency is true to connect the sink to the source through a SimulatedLoopback instead of
+// capturing a tone, and measure the round trip with a LatencyProbe before the run, and
+// playbackRate is the sink rate, converted to by a PolyphaseResampler if not SAMPLE_RATE.
+// The loopback requires the sink to run at SAMPLE_RATE.
+
+final class EchoSimulation {
+
+    static final int SAMPLE_RATE = 16000;
+    static final int CHANNEL_COUNT = 1;
+    static final int FRAME_SIZE = CHANNEL_COUNT * 2;
+    static final int CAPTURE_PERIOD_FRAMES = 320;
+    static final int PLAYBACK_PERIOD_FRAMES = 256;
+    static final int JITTER_BLOCK_FRAMES = 128;
+    static final int DELAY_FRAMES = SAMPLE_RATE / 5;
+    // the clock advances in steps of this size between calls to the engine
+    static final long STEP_NS = 1000000L;
+    // the simulated acoustic path in latency mode
+    static final int LOOPBACK_DELAY_FRAMES = SAMPLE_RATE * 3 / 1000;
+
+    final VirtualClock mClock = new VirtualClock();
+    final FloatPipe mPipe = new FloatPipe(10 * SAMPLE_RATE, CHANNEL_COUNT);
+    final SimulatedSource mSource;
+    final SimulatedSink mSink;
+    final JitterBuffer mJitterBuffer;
+    final PolyphaseResampler mResampler;
+    final ProcessingChain mChain;
+    final ReaderRunnable mReader;
+    final WriterRunnable mWriter;
+    final LatencyProbe mProbe;
+
+    EchoSimulation(long seed, double driftPpm)
+    {
+        this(seed, driftPpm, false, false, SAMPLE_RATE);
+    }
+
+    EchoSimulation(long seed, double driftPpm, boolean reverb, boolean loopback,
+            int playbackRate)
+    {
+        if (loopback && playbackRate != SAMPLE_RATE) {
+            throw new IllegalArgumentException("loopback requires playback at " + SAMPLE_RATE);
+        }
+        mSource = new SimulatedSource(mClock, SAMPLE_RATE, CHANNEL_COUNT, CAPTURE_PERIOD_FRAMES,
+                seed);
+        mSource.setJitter(2000000L);
+        mSource.setDriftPpm(driftPpm);
+        mSource.setStalls(0.0005, 50000000L);
+        mSink = new SimulatedSink(mClock, playbackRate, CHANNEL_COUNT,
+                PLAYBACK_PERIOD_FRAMES * playbackRate / SAMPLE_RATE, seed + 1);
+        mSink.setJitter(1000000L);
+        mSink.setStalls(0.0005, 20000000L);
+        // a 440 Hz sine at amplitude 8000 never steps by more than about 1400 per sample
+        // at 16 kHz, and proportionally more at lower rates
+        mSink.setGlitchThreshold(2000 * SAMPLE_RATE / playbackRate);
+        if (loopback) {
+            SimulatedLoopback path = new SimulatedLoopback(SAMPLE_RATE, CHANNEL_COUNT,
+                    LOOPBACK_DELAY_FRAMES, 0.5f, 100.0f, seed + 2);
+            mSink.setLoopback(path);
+            mSource.setLoopback(path);
+            mSink.setGlitchThreshold(Integer.MAX_VALUE);
+        }
+
+        mPipe.setOverrunPolicy(Pipe.OVERRUN_DROP_OLDEST, DELAY_FRAMES);
+        mJitterBuffer = new JitterBuffer(mPipe, SAMPLE_RATE, DELAY_FRAMES, JITTER_BLOCK_FRAMES);
+        mJitterBuffer.setMinDelay(CAPTURE_PERIOD_FRAMES + JITTER_BLOCK_FRAMES);
+        mJitterBuffer.setWaitForInput(false);
+        // No echo by default, so that the glitch detector still applies to the output
+        mChain = new ProcessingChain(SAMPLE_RATE, CHANNEL_COUNT, CAPTURE_PERIOD_FRAMES);
+        mChain.add(new HighPass(80.0));
+        if (reverb) {
+            mChain.add(new ConvolutionReverb(ImpulseResponses.canyonSpectrum(SAMPLE_RATE, 3.0,
+                    seed, 128), 1.0f, 0.3f));
+            mSink.setGlitchThreshold(Integer.MAX_VALUE);
+        }
+        mChain.add(new Gain(0.0f));
+        mChain.add(new Limiter(-1.0f, 50.0));
+        mChain.prepare();
+        mReader = new ReaderRunnable(mClock, mPipe, mSource, CAPTURE_PERIOD_FRAMES * FRAME_SIZE,
+                mChain);
+        mResampler = playbackRate != SAMPLE_RATE ? new PolyphaseResampler(SAMPLE_RATE,
+                playbackRate, CHANNEL_COUNT, JITTER_BLOCK_FRAMES) : null;
+        mWriter = new WriterRunnable(mClock, mPipe.getPipe(), mJitterBuffer, mResampler, mSink,
+                JITTER_BLOCK_FRAMES);
+        mProbe = new LatencyProbe(mClock, SAMPLE_RATE, CHANNEL_COUNT);
+        mReader.setLatencyProbe(mProbe);
+        mWriter.setLatencyProbe(mProbe);
+    }
+
+    // Runs for the given simulated time, and returns the wall-clock time taken in ns
+    long run(long durationNs) throws InterruptedException
+    {
+        long startNs = System.nanoTime();
+        if (mClock.nanoTime() == 0) {
+            float[] zeroes = new float[DELAY_FRAMES * CHANNEL_COUNT];
+            mPipe.write(zeroes, 0, DELAY_FRAMES);
+            mSource.start();
+            mSink.start();
+        }
+        long endNs = mClock.nanoTime() + durationNs;
+        while (mClock.nanoTime() < endNs) {
+            mClock.advance(STEP_NS);
+            while (mReader.process() > 0) {
+            }
+            while (mWriter.process() > 0) {
+            }
+        }
+        return System.nanoTime() - startNs;
+    }
+
+    // Measures the round trip with the LatencyProbe, running the simulation as needed
+    LatencyProbe.Result measureLatency() throws InterruptedException
+    {
+        mProbe.arm();
+        for (int i = 0; i < 50 && !mProbe.isCaptured(); ++i) {
+            run(100000000L);
+        }
+        return mProbe.isCaptured() ? mProbe.analyze() : new LatencyProbe.Result(false, 0, 0, 0);
+    }
+
+    String report()
+    {
+        PipeStats stats = new PipeStats();
+        mPipe.getStats(stats);
+        return String.format("simulated %.1f s%n"
+                + "pipe: %s%n"
+                + "source: %d periods, %d stalls, %d overruns%n"
+                + "sink: %d periods, %d stalls, %d underruns, %d glitches%n"
+                + "jitter buffer: drift %+.1f ppm, %d frames of silence inserted%n"
+                + "simulated time, from the virtual clock:%n%s%n%s%n%s%n%s%n"
+                + "processing chain, per capture period:%n%s",
+                mClock.nanoTime() * 1e-9, stats,
+                mSource.getPeriods(), mSource.getStalls(), mSource.getOverruns(),
+                mSink.getPeriods(), mSink.getStalls(), mSink.getUnderruns(), mSink.getGlitches(),
+                mJitterBuffer.getDriftPpm(), mJitterBuffer.getUnderrunFrames(),
+                snapshot(mReader.getReadTimes()), snapshot(mReader.getCycleTimes()),
+                snapshot(mWriter.getWriteTimes()), snapshot(mWriter.getCycleTimes()),
+                mChain.report(CAPTURE_PERIOD_FRAMES * 1000000000L / SAMPLE_RATE));
+    }
+
+    private static LatencyHistogram.Snapshot snapshot(LatencyHistogram histogram)
+    {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        histogram.getSnapshot(snapshot);
+        return snapshot;
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        double driftPpm = args.length > 2 ? Double.parseDouble(args[2]) : 100.0;
+        boolean reverb = args.length > 3 && Boolean.parseBoolean(args[3]);
+        boolean latency = args.length > 4 && Boolean.parseBoolean(args[4]);
+        int playbackRate = args.length > 5 ? Integer.parseInt(args[5]) : SAMPLE_RATE;
+        EchoSimulation simulation = new EchoSimulation(seed, driftPpm, reverb, latency,
+                playbackRate);
+        if (latency) {
+            simulation.run(2000000000L);
+            System.out.println(simulation.measureLatency() + ", delay setting "
+                    + DELAY_FRAMES * 1000 / SAMPLE_RATE + " ms");
+        }
+        long wallNs = simulation.run(seconds * 1000000000L);
+        System.out.println(simulation.report());
+        System.out.printf("wall time %.2f s, %.0fx real time%n", wallNs * 1e-9,
+                seconds * 1e9 / wallNs);
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// Recirculating echo: each repeat comes delayMs after the previous one, scaled by feedback.
+// The output is the input plus mix times the delay line output.
+
+final class FeedbackEcho implements BlockProcessor {
+
+    private final double mDelayMs;
+    private final float mFeedback;
+    private final float mMix;
+    private int mChannelCount;
+    private float[] mLine;          // interleaved, one delay period long
+    private int mPosition;          // next sample of mLine to read and then overwrite
+
+    // feedback must be < 1 for the echo to die away
+    FeedbackEcho(double delayMs, float feedback, float mix)
+    {
+        mDelayMs = delayMs;
+        mFeedback = feedback;
+        mMix = mix;
+    }
+
+    public String getName()
+    {
+        return "echo";
+    }
+
+    public void prepare(int sampleRate, int channelCount, int maxFrames)
+    {
+        mChannelCount = channelCount;
+        int delayFrames = Math.max(1, (int) (mDelayMs * sampleRate / 1000.0));
+        mLine = new float[delayFrames * channelCount];
+        mPosition = 0;
+    }
+
+    public void process(float[] buffer, int frames)
+    {
+        final float[] line = mLine;
+        final float feedback = mFeedback;
+        final float mix = mMix;
+        final int count = frames * mChannelCount;
+        int done = 0;
+        // Split at the wrap of the delay line, so that the inner loop has no wrap check
+        while (done < count) {
+            int run = Math.min(count - done, line.length - mPosition);
+            final int position = mPosition - done;
+            for (int i = done; i < done + run; ++i) {
+                float x = buffer[i];
+                float delayed = line[position + i];
+                buffer[i] = x + mix * delayed;
+                line[position + i] = x + feedback * delayed;
+            }
+            done += run;
+            mPosition += run;
+            if (mPosition == line.length) {
+                mPosition = 0;
+            }
+        }
+    }
+
+}
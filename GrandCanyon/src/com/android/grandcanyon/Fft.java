@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// Fast Fourier transform of real signals of a fixed power-of-2 size, in single precision.
+// A real transform of size N is done as a complex radix-2 transform of size N/2 on the even
+// and odd samples, followed by a split step.  All tables and work buffers are allocated by
+// the constructor; forward() and inverse() do not allocate.  Not thread-safe.
+
+final class Fft {
+
+    private final int mSize;        // N, real samples
+    private final int mHalf;        // N/2, complex points and index of the Nyquist bin
+    private final int[] mBitReverse;
+    private final float[] mCos;     // cos(2 pi j / (N/2)) for the complex transform
+    private final float[] mSin;
+    private final float[] mSplitCos;    // cos(2 pi k / N) for the split step
+    private final float[] mSplitSin;
+    private final float[] mZr;
+    private final float[] mZi;
+
+    // size must be a power of 2 >= 4
+    Fft(int size)
+    {
+        if (size < 4 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("size " + size);
+        }
+        mSize = size;
+        mHalf = size / 2;
+        int m = mHalf;
+        mBitReverse = new int[m];
+        int bits = Integer.numberOfTrailingZeros(m);
+        for (int i = 0; i < m; ++i) {
+            mBitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        mCos = new float[Math.max(1, m / 2)];
+        mSin = new float[Math.max(1, m / 2)];
+        for (int j = 0; j < m / 2; ++j) {
+            mCos[j] = (float) Math.cos(2.0 * Math.PI * j / m);
+            mSin[j] = (float) Math.sin(2.0 * Math.PI * j / m);
+        }
+        mSplitCos = new float[m + 1];
+        mSplitSin = new float[m + 1];
+        for (int k = 0; k <= m; ++k) {
+            mSplitCos[k] = (float) Math.cos(2.0 * Math.PI * k / size);
+            mSplitSin[k] = (float) Math.sin(2.0 * Math.PI * k / size);
+        }
+        mZr = new float[m];
+        mZi = new float[m];
+    }
+
+    int getSize()
+    {
+        return mSize;
+    }
+
+    // Number of bins in the spectrum of a real signal, N/2 + 1
+    int getBins()
+    {
+        return mHalf + 1;
+    }
+
+    // Transforms N real samples of input into N/2 + 1 complex bins, stored in re and im
+    // starting at offset.  Unscaled.
+    void forward(float[] input, float[] re, float[] im, int offset)
+    {
+        final int m = mHalf;
+        final float[] zr = mZr;
+        final float[] zi = mZi;
+        for (int n = 0; n < m; ++n) {
+            zr[n] = input[2 * n];
+            zi[n] = input[2 * n + 1];
+        }
+        transform(zr, zi, false);
+        // Z = E + iO, where E and O are the spectra of the even and odd samples;
+        // then X[k] = E[k] + e^(-2 pi i k / N) O[k]
+        re[offset] = zr[0] + zi[0];
+        im[offset] = 0.0f;
+        re[offset + m] = zr[0] - zi[0];
+        im[offset + m] = 0.0f;
+        for (int k = 1; k < m; ++k) {
+            float ar = zr[k], ai = zi[k];
+            float br = zr[m - k], bi = -zi[m - k];
+            float er = 0.5f * (ar + br), ei = 0.5f * (ai + bi);
+            float or = 0.5f * (ai - bi), oi = -0.5f * (ar - br);
+            float c = mSplitCos[k], s = mSplitSin[k];
+            re[offset + k] = er + or * c + oi * s;
+            im[offset + k] = ei + oi * c - or * s;
+        }
+    }
+
+    // Inverse of forward(): transforms N/2 + 1 bins at offset in re and im into N real samples
+    // of output, scaled so that inverse(forward(x)) == x.
+    void inverse(float[] re, float[] im, int offset, float[] output)
+    {
+        final int m = mHalf;
+        final float[] zr = mZr;
+        final float[] zi = mZi;
+        for (int k = 0; k < m; ++k) {
+            float ar = re[offset + k], ai = im[offset + k];
+            float br = re[offset + m - k], bi = -im[offset + m - k];
+            float er = 0.5f * (ar + br), ei = 0.5f * (ai + bi);
+            float dr = 0.5f * (ar - br), di = 0.5f * (ai - bi);
+            float c = mSplitCos[k], s = mSplitSin[k];
+            float or = dr * c - di * s, oi = dr * s + di * c;
+            zr[k] = er - oi;
+            zi[k] = ei + or;
+        }
+        transform(zr, zi, true);
+        for (int n = 0; n < m; ++n) {
+            output[2 * n] = zr[n];
+            output[2 * n + 1] = zi[n];
+        }
+    }
+
+    // In-place iterative radix-2 complex transform of size N/2; the inverse is scaled by 2/N
+    private void transform(float[] re, float[] im, boolean inverse)
+    {
+        final int m = mHalf;
+        final int[] bitReverse = mBitReverse;
+        for (int i = 0; i < m; ++i) {
+            int j = bitReverse[i];
+            if (j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        final float sign = inverse ? 1.0f : -1.0f;
+        for (int size = 2; size <= m; size <<= 1) {
+            int half = size >> 1;
+            int step = m / size;
+            for (int j = 0; j < half; ++j) {
+                float c = mCos[j * step];
+                float s = sign * mSin[j * step];
+                for (int a = j; a < m; a += size) {
+                    int b = a + half;
+                    float tr = re[b] * c - im[b] * s;
+                    float ti = re[b] * s + im[b] * c;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+        if (inverse) {
+            float scale = 1.0f / m;
+            for (int i = 0; i < m; ++i) {
+                re[i] *= scale;
+                im[i] *= scale;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+// FramePipe for interleaved float samples, in native byte order in the ring.  Lets a float
+// producer such as a ProcessingChain hand its output to a float consumer such as a
+// JitterBuffer with no conversion to 16-bit PCM and back.  The splice crossfade of Pipe is
+// for 16-bit PCM only, so splices in a FloatPipe are not crossfaded.
+
+class FloatPipe extends FramePipe {
+
+    private final FloatBuffer mReadView;    // used only by the reader
+    private final FloatBuffer mWriteView;   // used only by the writer
+
+    // maxFrames will be rounded up so that the ring is a power of 2 bytes, see Pipe.
+    FloatPipe(int maxFrames, int channelCount)
+    {
+        super(new Pipe(maxFrames * channelCount * 4), channelCount, 4);
+        mReadView = view(mPipe);
+        mWriteView = view(mPipe);
+    }
+
+    // buffer must != null.
+    // offset and count must be >= 0, and (offset + count) * channelCount <= buffer.length.
+    // With OVERRUN_DROP_NEWEST, whatever does not fit is dropped, as for Pipe.write().
+    // Returns actual number of frames copied >= 0.
+    int write(float[] buffer, int offset, int count)
+    {
+        int written = obtainWrite(count);
+        Pipe.Segments segments = mWriteSegments;
+        offset *= mChannelCount;
+        mWriteView.position(segments.mOffset0);
+        mWriteView.put(buffer, offset, segments.mLength0);
+        if (segments.mLength1 > 0) {
+            mWriteView.position(0);
+            mWriteView.put(buffer, offset + segments.mLength0, segments.mLength1);
+        }
+        return commitWrite(written, count);
+    }
+
+    // buffer must != null.
+    // offset and count must be >= 0, and (offset + count) * channelCount <= buffer.length.
+    // Returns actual number of frames copied >= 0, or OVERRUN.
+    int read(float[] buffer, int offset, int count)
+    {
+        int red = obtainRead(count);
+        if (red <= 0) {
+            return red;
+        }
+        Pipe.Segments segments = mReadSegments;
+        offset *= mChannelCount;
+        mReadView.position(segments.mOffset0);
+        mReadView.get(buffer, offset, segments.mLength0);
+        if (segments.mLength1 > 0) {
+            mReadView.position(0);
+            mReadView.get(buffer, offset + segments.mLength0, segments.mLength1);
+        }
+        mPipe.commitRead(red * mFrameSize);
+        return red;
+    }
+
+    int readFloat(float[] buffer, int offset, int count)
+    {
+        return read(buffer, offset, count);
+    }
+
+    // A native-order float view of the whole ring, with a position of its own
+    private static FloatBuffer view(Pipe pipe)
+    {
+        ByteBuffer ring = pipe.byteBuffer().duplicate();
+        ring.clear();
+        return ring.order(pipe.byteBuffer().order()).asFloatBuffer();
+    }
+
+}
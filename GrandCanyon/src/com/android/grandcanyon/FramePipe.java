@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// Frame-counted layer over the ring of a Pipe, for interleaved samples of one primitive type.
+// A subclass copies the samples in and out through a typed view of the ring, with bulk
+// transfers and no per-sample conversion, as ShortPipe and FloatPipe do.  The cursors, overrun
+// policies, validation, waiting and statistics are the Pipe's own, and behave as for a byte
+// reader and writer, in whole frames.  Offsets and counts are in frames, where a frame is
+// channelCount samples, unless stated otherwise.  As for Pipe, there is a single writer and a
+// single reader.  Validated reads flag torn data but never discard it, as for commitRead().
+
+abstract class FramePipe {
+
+    public static final int OVERRUN = Pipe.OVERRUN;
+
+    final Pipe mPipe;
+    final int mChannelCount;
+    final int mFrameSize;           // in bytes
+    private final int mSampleShift; // log2 of the sample size in bytes
+    // written by obtainRead() and obtainWrite(), in samples of the typed view of the ring
+    final Pipe.Segments mReadSegments = new Pipe.Segments();
+    final Pipe.Segments mWriteSegments = new Pipe.Segments();
+
+    // sampleBytes must be a power of 2.  Sets the frame size of pipe, see Pipe.setFrameSize().
+    FramePipe(Pipe pipe, int channelCount, int sampleBytes)
+    {
+        mPipe = pipe;
+        mChannelCount = channelCount;
+        mFrameSize = channelCount * sampleBytes;
+        mSampleShift = Integer.numberOfTrailingZeros(sampleBytes);
+        pipe.setFrameSize(mFrameSize);
+    }
+
+    // The underlying byte pipe, for its configuration and for byte-level readers and writers
+    Pipe getPipe()
+    {
+        return mPipe;
+    }
+
+    int getChannelCount()
+    {
+        return mChannelCount;
+    }
+
+    // See Pipe.setOverrunPolicy(), with targetFrames in frames
+    void setOverrunPolicy(int overrunPolicy, int targetFrames)
+    {
+        mPipe.setOverrunPolicy(overrunPolicy, targetFrames * mFrameSize);
+    }
+
+    // See Pipe.setTargetFill(), with targetFrames in frames
+    void setTargetFill(int targetFrames)
+    {
+        mPipe.setTargetFill(targetFrames * mFrameSize);
+    }
+
+    // See Pipe.getStats(); the counts are in bytes
+    void getStats(PipeStats stats)
+    {
+        mPipe.getStats(stats);
+    }
+
+    int availableToRead()
+    {
+        int avail = mPipe.availableToRead();
+        return avail < 0 ? avail : avail / mFrameSize;
+    }
+
+    int availableToWrite()
+    {
+        return mPipe.availableToWrite() / mFrameSize;
+    }
+
+    // See Pipe.waitToRead(), with count and the result in frames
+    int waitToRead(int count, long timeoutNs) throws InterruptedException
+    {
+        int avail = mPipe.waitToRead(count * mFrameSize, timeoutNs);
+        return avail < 0 ? avail : avail / mFrameSize;
+    }
+
+    // See Pipe.waitToWrite(), with count and the result in frames
+    int waitToWrite(int count, long timeoutNs) throws InterruptedException
+    {
+        return mPipe.waitToWrite(count * mFrameSize, timeoutNs) / mFrameSize;
+    }
+
+    void flush()
+    {
+        mPipe.flush();
+    }
+
+    // Reads up to count frames into buffer at offset, as floats in [-1, 1).
+    // Returns actual number of frames read >= 0, or OVERRUN.
+    abstract int readFloat(float[] buffer, int offset, int count);
+
+    // Obtains up to count frames to read into mReadSegments, in samples.
+    // Returns the number of frames obtained >= 0, or OVERRUN.
+    final int obtainRead(int count)
+    {
+        int obtained = mPipe.obtainRead(mReadSegments, count * mFrameSize);
+        if (obtained > 0) {
+            toSamples(mReadSegments);
+            obtained /= mFrameSize;
+        }
+        return obtained;
+    }
+
+    // Obtains space for up to count frames to write into mWriteSegments, in samples.
+    // Returns the number of frames obtained >= 0.
+    final int obtainWrite(int count)
+    {
+        int obtained = mPipe.obtainWrite(mWriteSegments, count * mFrameSize);
+        if (obtained % mFrameSize != 0) {
+            // clamped to a ring that is not a whole number of frames
+            obtained = mPipe.obtainWrite(mWriteSegments, obtained - obtained % mFrameSize);
+        }
+        toSamples(mWriteSegments);
+        return obtained / mFrameSize;
+    }
+
+    // Publishes the written frames of the count requested, and drops the rest as Pipe.write()
+    // does with OVERRUN_DROP_NEWEST.  Returns written.
+    final int commitWrite(int written, int count)
+    {
+        mPipe.commitWrite(written * mFrameSize);
+        if (written < count) {
+            mPipe.dropWrite((count - written) * mFrameSize);
+        }
+        return written;
+    }
+
+    private void toSamples(Pipe.Segments segments)
+    {
+        segments.mOffset0 >>= mSampleShift;
+        segments.mLength0 >>= mSampleShift;
+        segments.mLength1 >>= mSampleShift;
+    }
+
+}
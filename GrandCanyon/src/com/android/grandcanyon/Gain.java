@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// Fixed gain, changeable at any time from any thread.  A change is ramped linearly
+// over one block so that it does not click.
+
+final class Gain implements BlockProcessor {
+
+    private volatile float mTarget;
+    private float mGain;
+    private int mChannelCount;
+
+    Gain(float gainDb)
+    {
+        setGainDb(gainDb);
+        mGain = mTarget;
+    }
+
+    void setGainDb(float gainDb)
+    {
+        mTarget = (float) Math.pow(10.0, gainDb / 20.0);
+    }
+
+    public String getName()
+    {
+        return "gain";
+    }
+
+    public void prepare(int sampleRate, int channelCount, int maxFrames)
+    {
+        mChannelCount = channelCount;
+    }
+
+    public void process(float[] buffer, int frames)
+    {
+        final int count = frames * mChannelCount;
+        final float target = mTarget;
+        float gain = mGain;
+        if (gain == target) {
+            for (int i = 0; i < count; ++i) {
+                buffer[i] *= gain;
+            }
+            return;
+        }
+        final float step = (target - gain) / frames;
+        final int channelCount = mChannelCount;
+        for (int i = 0; i < count; i += channelCount) {
+            gain += step;
+            for (int channel = 0; channel < channelCount; ++channel) {
+                buffer[i + channel] *= gain;
+            }
+        }
+        mGain = target;
+    }
+
+}
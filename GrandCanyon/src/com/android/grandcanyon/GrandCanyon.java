@@ -30,10 +30,13 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -55,24 +58,32 @@ public class GrandCanyon extends Activity {
     static final private int RECORDER_INITIALIZATION_PB = 1;
 
     private TextView mConsoleView; // where we display the log of the last action
+    private TextView mLatencyView; // where we display the last latency measurement
 
     // -------------------------------------------------
     // Audio stuff
     private AudioManager mAudioManager;
 
-    private byte[] mAudioByteArray;
     private int mMinRecordBuffSizeInBytes = 0;
     private int mMinPlayBuffSizeInBytes = 0;
 
     private AudioRecord mRecorder;
     private AudioTrack mAudioTrack;
 
-    // our default recording settings
-    private static final int mSamplingRate = 16000;
+    // our recording settings; the rate and channel count are chosen in the UI, and the rest
+    // is derived from them at each start
+    private int mSamplingRate = 16000;
+    private int mChannelCount = 1;
     private static final int mSelectedRecordSource = MediaRecorder.AudioSource.DEFAULT;
-    private static final int mChannelConfig = AudioFormat.CHANNEL_IN_MONO;
-    private static final int mChannelConfigOut = AudioFormat.CHANNEL_OUT_MONO;
+    private int mChannelConfig;
+    private int mChannelConfigOut;
     private static final int mAudioFormat = AudioFormat.ENCODING_PCM_16BIT;
+    private int mFrameSize;
+    // play at the device's native rate, converting with a PolyphaseResampler when that differs
+    // from mSamplingRate, rather than leaving the conversion to the platform; this needs
+    // mDriftCompensation.  Otherwise play at mSamplingRate.
+    private static final boolean mNativePlaybackRate = true;
+    private int mPlaybackRate;
     private int mDelayDeciSeconds = 20;
 
     Thread mWriterThread;
@@ -83,8 +94,100 @@ public class GrandCanyon extends Activity {
     // for record log
     private static final String TAG = "GrandCanyon";
 
-    private static final int pipeLength = 10 * mSamplingRate * 2;
-    Pipe mPipe = new Pipe(pipeLength);
+    // created at each start, as its length depends on the format
+    private static final int PIPE_SECONDS = 10;
+    Pipe mPipe;
+
+    // how the playback thread waits for captured data; trades CPU time for wakeup latency
+    private static final WaitStrategy mWaitStrategy = WaitStrategy.PARK;
+
+    // if the pipe overruns, drop the oldest data back to the configured delay, with a short
+    // crossfade at the splice; smaller excesses are drained by the jitter buffer's resampler
+    private static final int mOverrunPolicy = Pipe.OVERRUN_DROP_OLDEST;
+    private static final int CROSSFADE_MS = 2;
+
+    // lock the delay against drift between the capture and playback clocks by resampling
+    // on the playback side; null to play the pipe contents unmodified
+    private static final boolean mDriftCompensation = true;
+    private static final int JITTER_BLOCK_FRAMES = 128;
+    private JitterBuffer mJitterBuffer;
+
+    // effects applied to the captured audio before it enters the pipe; null for none
+    private static final boolean mEffects = false;
+    // a canyon impulse response instead of the single recirculating echo
+    private static final boolean mReverb = false;
+    private static final double REVERB_SECONDS = 3.0;
+    private static final int REVERB_BLOCK_FRAMES = 128;
+    private ProcessingChain mProcessingChain;
+    private long mCapturePeriodNs;
+
+    // round-trip latency measurement, on request while recording
+    private static final long LATENCY_TIMEOUT_MS = 5000;
+    private LatencyProbe mLatencyProbe;
+
+    // optional archive of the raw capture to a WAV file, on a thread of its own
+    private static final int TAP_SECONDS = 8;
+    private boolean mSaveRaw = false;
+    private WavRecorder mWavRecorder;
+
+    // timing of the audio threads' device calls, since the start or the last tap on the status
+    private LatencyHistogram[] mHistograms;
+    private final LatencyHistogram.Snapshot mHistogramSnapshot = new LatencyHistogram.Snapshot();
+
+    // live buffer health, refreshed on the UI thread while recording
+    private static final int STATUS_PERIOD_MS = 500;
+    private final PipeStats mPipeStats = new PipeStats();
+    private final Runnable mStatusUpdater = new Runnable() {
+        public void run() {
+            mPipe.getStats(mPipeStats);
+            String status = getText(R.string.textRecording) + "\n" + mPipeStats;
+            status += String.format("\ncapture %d Hz, playback %d Hz, %d channels",
+                    mSamplingRate, mPlaybackRate, mChannelCount);
+            JitterBuffer jitterBuffer = mJitterBuffer;
+            if (jitterBuffer != null) {
+                updateDelay();
+                status += String.format("\ndelay %d ms", jitterBuffer.getDelayFrames() * 1000
+                        / mSamplingRate);
+                status += String.format("\ndrift %+.1f ppm, underrun %d frames",
+                        jitterBuffer.getDriftPpm(), jitterBuffer.getUnderrunFrames());
+            }
+            LatencyProbe latencyProbe = mLatencyProbe;
+            if (latencyProbe != null && latencyProbe.getResult() != null) {
+                mLatencyView.setText(latencyProbe.getResult() + ", delay setting "
+                        + mDelayDeciSeconds * 100 + " ms");
+            }
+            LatencyHistogram[] histograms = mHistograms;
+            if (histograms != null) {
+                for (LatencyHistogram histogram : histograms) {
+                    histogram.getSnapshot(mHistogramSnapshot);
+                    status += "\n" + mHistogramSnapshot;
+                }
+            }
+            ProcessingChain processingChain = mProcessingChain;
+            if (processingChain != null) {
+                status += "\n" + processingChain.report(mCapturePeriodNs);
+            }
+            WavRecorder wavRecorder = mWavRecorder;
+            if (wavRecorder != null) {
+                status += "\n" + wavRecorder;
+            }
+            displayStatus(status);
+            mConsoleView.postDelayed(this, STATUS_PERIOD_MS);
+        }
+    };
+
+    // While recording, moves the echo smoothly to the current delay setting.  The pipe
+    // catch-up target follows behind, so that it never cuts short a glide to a shorter delay.
+    private void updateDelay() {
+        JitterBuffer jitterBuffer = mJitterBuffer;
+        if (jitterBuffer == null) {
+            // takes effect at the next start
+            return;
+        }
+        int delayFrames = mDelayDeciSeconds * mSamplingRate / 10;
+        jitterBuffer.setTargetDelay(delayFrames);
+        mPipe.setTargetFill(Math.max(delayFrames, jitterBuffer.getDelayFrames()) * mFrameSize);
+    }
 
     public GrandCanyon() {
         log("GrandCanyon()");
@@ -109,6 +212,19 @@ public class GrandCanyon extends Activity {
         // Initialize the console view
         mConsoleView = (TextView) findViewById(R.id.labelconsole);
         mConsoleView.setText(getText(R.string.textEmptyConsole));
+        // Tapping the status restarts the timing histograms, e.g. just before reproducing a glitch
+        mConsoleView.setOnClickListener(
+            new OnClickListener() {
+                public void onClick(View v) {
+                    LatencyHistogram[] histograms = mHistograms;
+                    if (histograms != null) {
+                        for (LatencyHistogram histogram : histograms) {
+                            histogram.reset();
+                        }
+                    }
+                }
+            });
+        mLatencyView = (TextView) findViewById(R.id.labellatency);
 
         // --------------------------------
         // UI button click listeners
@@ -131,6 +247,18 @@ public class GrandCanyon extends Activity {
                 }
             });
 
+        // A call-back for when the user presses the Measure button
+        ((Button) findViewById(R.id.buttonMeasure)).setOnClickListener(
+            new OnClickListener() {
+                public void onClick(View v) {
+                    LatencyProbe latencyProbe = mLatencyProbe;
+                    if (latencyProbe != null) {
+                        mLatencyView.setText(R.string.textMeasuring);
+                        latencyProbe.measureInBackground(LATENCY_TIMEOUT_MS);
+                    }
+                }
+            });
+
         // A call-back for when the user clicks the "Mic Mute" checkbox.
         CheckBox micMuteCB = (CheckBox) findViewById(R.id.micMuteCB);
         micMuteCB.setOnClickListener(
@@ -144,6 +272,43 @@ public class GrandCanyon extends Activity {
         micMuteCB.setEnabled(true);
         micMuteCB.setChecked(mAudioManager.isMicrophoneMute());
 
+        // A call-back for when the user clicks the "Save Raw" checkbox.
+        CheckBox saveRawCB = (CheckBox) findViewById(R.id.saveRawCB);
+        saveRawCB.setOnClickListener(
+            new OnClickListener() {
+                public void onClick(View v) {
+                    mSaveRaw = ((CheckBox)v).isChecked();
+                }
+            });
+        saveRawCB.setChecked(mSaveRaw);
+
+        // Call-backs for when the user picks a sample rate or channel count; these take effect
+        // at the next start
+        Spinner sampleRateSpinner = (Spinner) findViewById(R.id.sampleRateSpinner);
+        selectItem(sampleRateSpinner, Integer.toString(mSamplingRate));
+        sampleRateSpinner.setOnItemSelectedListener(
+            new OnItemSelectedListener() {
+                public void onItemSelected(AdapterView<?> parent, View view, int position,
+                        long id) {
+                    mSamplingRate = Integer.parseInt(
+                            parent.getItemAtPosition(position).toString());
+                }
+                public void onNothingSelected(AdapterView<?> parent) {
+                }
+            });
+        Spinner channelSpinner = (Spinner) findViewById(R.id.channelSpinner);
+        channelSpinner.setSelection(mChannelCount - 1);
+        channelSpinner.setOnItemSelectedListener(
+            new OnItemSelectedListener() {
+                public void onItemSelected(AdapterView<?> parent, View view, int position,
+                        long id) {
+                    // the entries are mono then stereo
+                    mChannelCount = position + 1;
+                }
+                public void onNothingSelected(AdapterView<?> parent) {
+                }
+            });
+
         SeekBar seekBar = (SeekBar) findViewById(R.id.seekBar);
         seekBar.setProgress(mDelayDeciSeconds);
         seekBar.setSecondaryProgress(0);
@@ -152,6 +317,7 @@ public class GrandCanyon extends Activity {
                 public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                     if (progress >= 0 && progress <= 100) {
                         mDelayDeciSeconds = progress;
+                        updateDelay();
                     }
                 }
                 public void onStartTrackingTouch(SeekBar seekBar) {
@@ -206,9 +372,17 @@ public class GrandCanyon extends Activity {
             if (mIsRecording) {
                 findViewById(R.id.buttonRecord).setEnabled(false);
                 findViewById(R.id.buttonStopRecord).setEnabled(true);
+                findViewById(R.id.buttonMeasure).setEnabled(true);
+                findViewById(R.id.saveRawCB).setEnabled(false);
+                findViewById(R.id.sampleRateSpinner).setEnabled(false);
+                findViewById(R.id.channelSpinner).setEnabled(false);
             } else {
                 findViewById(R.id.buttonRecord).setEnabled(true);
                 findViewById(R.id.buttonStopRecord).setEnabled(false);
+                findViewById(R.id.buttonMeasure).setEnabled(false);
+                findViewById(R.id.saveRawCB).setEnabled(true);
+                findViewById(R.id.sampleRateSpinner).setEnabled(true);
+                findViewById(R.id.channelSpinner).setEnabled(true);
             }
         }
     }
@@ -223,6 +397,16 @@ public class GrandCanyon extends Activity {
         }
         updateUI();
 
+        mFrameSize = mChannelCount * 2;
+        mChannelConfig = mChannelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO
+                : AudioFormat.CHANNEL_IN_MONO;
+        mChannelConfigOut = mChannelCount == 2 ? AudioFormat.CHANNEL_OUT_STEREO
+                : AudioFormat.CHANNEL_OUT_MONO;
+        mPlaybackRate = mNativePlaybackRate && mDriftCompensation
+                ? AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC) : mSamplingRate;
+        log("capture " + mSamplingRate + " Hz, playback " + mPlaybackRate + " Hz, "
+                + mChannelCount + " channels");
+
         boolean successful;
         successful = initPlay();
         if (successful) {
@@ -246,7 +430,8 @@ public class GrandCanyon extends Activity {
     }
 
     private boolean initPlay() {
-        mMinPlayBuffSizeInBytes = AudioTrack.getMinBufferSize(mSamplingRate, mChannelConfigOut, mAudioFormat);
+        mMinPlayBuffSizeInBytes = AudioTrack.getMinBufferSize(mPlaybackRate,
+                mChannelConfigOut, mAudioFormat);
         log("min buff size = " + mMinPlayBuffSizeInBytes + " bytes");
         if (mMinPlayBuffSizeInBytes <= 0) {
             return false;
@@ -256,7 +441,7 @@ public class GrandCanyon extends Activity {
             mAudioTrack = null;
         }
         try {
-            mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, mSamplingRate,
+            mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, mPlaybackRate,
                     mChannelConfigOut, mAudioFormat, 2 * mMinPlayBuffSizeInBytes,
                     AudioTrack.MODE_STREAM);
         } catch (IllegalArgumentException e) {
@@ -272,9 +457,6 @@ public class GrandCanyon extends Activity {
             return false;
         }
 
-        // allocate the byte array to read the audio data
-        mAudioByteArray = new byte[mMinRecordBuffSizeInBytes / 2];
-
         try {
             mRecorder = new AudioRecord(mSelectedRecordSource, mSamplingRate,
                     mChannelConfig, mAudioFormat, 2 * mMinRecordBuffSizeInBytes);
@@ -292,25 +474,82 @@ public class GrandCanyon extends Activity {
 
     private void startRecordingForReal() {
 
-        mPipe.flush();
-        byte[] zeroes = new byte[128];
+        int pipeLength = PIPE_SECONDS * mSamplingRate * mFrameSize;
+        mPipe = new Pipe(pipeLength);
+        mPipe.setWaitStrategy(mWaitStrategy);
+        mPipe.setOverrunPolicy(mOverrunPolicy, mDelayDeciSeconds * mSamplingRate / 10 * mFrameSize);
+        mPipe.setSpliceCrossfade(mSamplingRate * CROSSFADE_MS / 1000, mChannelCount);
+        byte[] zeroes = new byte[32 * mFrameSize];
         for (int totalWritten = 0; totalWritten < pipeLength; ) {
             int written = mPipe.write(zeroes, 0, zeroes.length);
             if (written <= 0) {
                 break;
             }
             totalWritten += written;
-            if (totalWritten >= mDelayDeciSeconds * mSamplingRate * 2 / 10) {
+            if (totalWritten >= mDelayDeciSeconds * mSamplingRate / 10 * mFrameSize) {
                 break;
             }
         }
 
-        Runnable writerRunnable = new WriterRunnable(mPipe, mAudioTrack);
+        // half the minimum capture buffer, in whole frames
+        int readSizeInBytes = mMinRecordBuffSizeInBytes / 2;
+        readSizeInBytes -= readSizeInBytes % mFrameSize;
+
+        // the jitter buffer takes whole samples from the ring, keeping the splice crossfade
+        mJitterBuffer = mDriftCompensation ? new JitterBuffer(new ShortPipe(mPipe, mChannelCount),
+                mSamplingRate, mDelayDeciSeconds * mSamplingRate / 10, JITTER_BLOCK_FRAMES) : null;
+        if (mJitterBuffer != null) {
+            // one capture read plus one block
+            mJitterBuffer.setMinDelay(readSizeInBytes / mFrameSize + JITTER_BLOCK_FRAMES);
+        }
+        PolyphaseResampler resampler = mJitterBuffer != null && mPlaybackRate != mSamplingRate
+                ? new PolyphaseResampler(mSamplingRate, mPlaybackRate, mChannelCount,
+                        JITTER_BLOCK_FRAMES) : null;
+        mLatencyProbe = new LatencyProbe(AudioClock.SYSTEM, mSamplingRate, mChannelCount);
+        WriterRunnable writerRunnable = new WriterRunnable(AudioClock.SYSTEM, mPipe, mJitterBuffer,
+                resampler, mAudioTrack != null ? new AudioTrackSink(mAudioTrack) : null,
+                JITTER_BLOCK_FRAMES);
+        writerRunnable.setLatencyProbe(mLatencyProbe);
         mWriterThread = new Thread(writerRunnable);
         mWriterThread.setName("GrandCanyonWriter");
         mWriterThread.start();
 
-        Runnable readerRunnable = new ReaderRunnable(mPipe, mRecorder);
+        mCapturePeriodNs = readSizeInBytes / mFrameSize * 1000000000L / mSamplingRate;
+        mProcessingChain = null;
+        if (mEffects) {
+            mProcessingChain = new ProcessingChain(mSamplingRate, mChannelCount,
+                    readSizeInBytes / mFrameSize);
+            mProcessingChain.add(new HighPass(80.0));
+            if (mReverb) {
+                // the spectrum is cached, so only the first start pays for it
+                PartitionedIr ir = ImpulseResponses.canyonSpectrum(mSamplingRate,
+                        REVERB_SECONDS, 1, REVERB_BLOCK_FRAMES);
+                mProcessingChain.add(new ConvolutionReverb(ir, 1.0f, 0.3f));
+            } else {
+                mProcessingChain.add(new FeedbackEcho(150.0, 0.35f, 0.35f));
+            }
+            mProcessingChain.add(new Gain(0.0f));
+            mProcessingChain.add(new Limiter(-1.0f, 50.0));
+            mProcessingChain.prepare();
+        }
+        ReaderRunnable readerRunnable = new ReaderRunnable(AudioClock.SYSTEM, mPipe,
+                new AudioRecordSource(mRecorder), readSizeInBytes, mProcessingChain);
+        readerRunnable.setLatencyProbe(mLatencyProbe);
+        if (mSaveRaw) {
+            BroadcastPipe tap = new BroadcastPipe(TAP_SECONDS * mSamplingRate * mFrameSize);
+            File dir = getExternalFilesDir(null);
+            if (dir == null) {
+                dir = getFilesDir();
+            }
+            File file = new File(dir, "grandcanyon-" + System.currentTimeMillis() + ".wav");
+            mWavRecorder = new WavRecorder(file, tap.newReader(), mSamplingRate, mChannelCount);
+            mWavRecorder.start();
+            readerRunnable.setTap(tap);
+        }
+        mHistograms = new LatencyHistogram[] {
+            readerRunnable.getReadTimes(), readerRunnable.getCycleTimes(),
+            writerRunnable.getWriteTimes(), writerRunnable.getCycleTimes()
+        };
         mReaderThread = new Thread(readerRunnable);
         mReaderThread.setName("GrandCanyonReader");
         mReaderThread.start();
@@ -324,6 +563,7 @@ public class GrandCanyon extends Activity {
         }
         log("Start time: " + (long) (SystemClock.uptimeMillis() - startTime) + " ms");
         mConsoleView.setText(R.string.textRecording);
+        mConsoleView.postDelayed(mStatusUpdater, STATUS_PERIOD_MS);
     }
 
     private void stopRecording() {
@@ -336,6 +576,8 @@ public class GrandCanyon extends Activity {
 
     private void stopRecordingForReal() {
 
+        mConsoleView.removeCallbacks(mStatusUpdater);
+
         // stop streaming
         Thread zeThread = mReaderThread;
         mReaderThread = null;
@@ -362,6 +604,27 @@ public class GrandCanyon extends Activity {
                 }
             }
         }
+        mJitterBuffer = null;
+        mProcessingChain = null;
+        mLatencyProbe = null;
+        mHistograms = null;
+
+        // the reader thread no longer writes the tap, so the recorder drains it and completes
+        // the file in the background, and then reports
+        final WavRecorder wavRecorder = mWavRecorder;
+        mWavRecorder = null;
+        if (wavRecorder != null) {
+            wavRecorder.stop(new Runnable() {
+                public void run() {
+                    log(wavRecorder.toString());
+                    mConsoleView.post(new Runnable() {
+                        public void run() {
+                            displayStatus(wavRecorder.getFile().getPath() + "\n" + wavRecorder);
+                        }
+                    });
+                }
+            });
+        }
 
         // release resources
         if (mRecorder != null) {
@@ -376,64 +639,10 @@ public class GrandCanyon extends Activity {
             mAudioTrack = null;
         }
 
-        displayStatus(getText(R.string.textEmptyConsole));
-    }
-
-    // Implementation of Runnable for the audio playback side
-    static class WriterRunnable implements Runnable
-    {
-        private final Pipe mPipe;
-        private final AudioTrack mAudioTrack;
-        WriterRunnable(Pipe pipe, AudioTrack audioTrack)
-        {
-            mPipe = pipe;
-            mAudioTrack = audioTrack;
-        }
-        public void run()
-        {
-            if (mAudioTrack != null) {
-                mAudioTrack.play();
-            }
-            byte[] buffer = new byte[128];
-            while (!Thread.interrupted()) {
-                int red = mPipe.read(buffer, 0, buffer.length);
-                if (red < 0) {
-                    break;
-                }
-                if (red == 0) {
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        break;
-                    }
-                    continue;
-                }
-                if (mAudioTrack != null) {
-                    mAudioTrack.write(buffer, 0, red);
-                }
-            }
-        }
-    }
-
-    // Implementation of Runnable for the audio capture side
-    class ReaderRunnable implements Runnable
-    {
-        private final Pipe mPipe;
-        private final AudioRecord mAudioRecord;
-        ReaderRunnable(Pipe pipe, AudioRecord audioRecord)
-        {
-            mPipe = pipe;
-            mAudioRecord = audioRecord;
-        }
-        public void run() {
-            while (!Thread.interrupted()) {
-                // read from native recorder
-                int nbBytesRead = mAudioRecord.read(mAudioByteArray, 0,
-                        mMinRecordBuffSizeInBytes / 2);
-                if (nbBytesRead > 0) {
-                    mPipe.write(mAudioByteArray, 0, nbBytesRead);
-                }
-            }
+        if (wavRecorder != null) {
+            displayStatus(wavRecorder.getFile().getPath() + "\n" + wavRecorder + ", finishing");
+        } else {
+            displayStatus(getText(R.string.textEmptyConsole));
         }
     }
 
@@ -441,6 +650,16 @@ public class GrandCanyon extends Activity {
     // Misc
     // --------------------
 
+    // Selects the entry of spinner with the given text, if there is one
+    private static void selectItem(Spinner spinner, String text) {
+        for (int i = 0; i < spinner.getCount(); ++i) {
+            if (text.equals(spinner.getItemAtPosition(i).toString())) {
+                spinner.setSelection(i);
+                return;
+            }
+        }
+    }
+
     private static void log(String msg) {
         Log.v(TAG, "" + msg);
     }
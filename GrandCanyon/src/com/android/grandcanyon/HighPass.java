@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// Second-order Butterworth high-pass filter, to remove DC and rumble before the echo
+// recirculates them.  Biquad in transposed direct form II, one state per channel.
+
+final class HighPass implements BlockProcessor {
+
+    private final double mCutoffHz;
+    private int mChannelCount;
+    private float mB0, mB1, mB2, mA1, mA2;
+    private float[] mZ1, mZ2;
+
+    HighPass(double cutoffHz)
+    {
+        mCutoffHz = cutoffHz;
+    }
+
+    public String getName()
+    {
+        return "high-pass";
+    }
+
+    public void prepare(int sampleRate, int channelCount, int maxFrames)
+    {
+        mChannelCount = channelCount;
+        mZ1 = new float[channelCount];
+        mZ2 = new float[channelCount];
+        // Bilinear transform, from the audio EQ cookbook, Q = 1/sqrt(2)
+        double w0 = 2.0 * Math.PI * mCutoffHz / sampleRate;
+        double alpha = Math.sin(w0) / Math.sqrt(2.0);
+        double cos = Math.cos(w0);
+        double a0 = 1.0 + alpha;
+        mB0 = (float) ((1.0 + cos) / 2.0 / a0);
+        mB1 = (float) (-(1.0 + cos) / a0);
+        mB2 = mB0;
+        mA1 = (float) (-2.0 * cos / a0);
+        mA2 = (float) ((1.0 - alpha) / a0);
+    }
+
+    public void process(float[] buffer, int frames)
+    {
+        final float b0 = mB0, b1 = mB1, b2 = mB2, a1 = mA1, a2 = mA2;
+        final int channelCount = mChannelCount;
+        final int count = frames * channelCount;
+        for (int channel = 0; channel < channelCount; ++channel) {
+            float z1 = mZ1[channel];
+            float z2 = mZ2[channel];
+            for (int i = channel; i < count; i += channelCount) {
+                float x = buffer[i];
+                float y = b0 * x + z1;
+                z1 = b1 * x - a1 * y + z2;
+                z2 = b2 * x - a2 * y;
+                buffer[i] = y;
+            }
+            mZ1[channel] = z1;
+            mZ2[channel] = z2;
+        }
+    }
+
+}
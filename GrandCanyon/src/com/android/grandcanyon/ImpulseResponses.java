@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.util.Random;
+
+// Synthetic impulse responses, generated from a seed so that they are reproducible.
+
+final class ImpulseResponses {
+
+    private ImpulseResponses()
+    {
+    }
+
+    // The spectrum of canyon() for blockSize, from the PartitionedIr cache if available
+    static PartitionedIr canyonSpectrum(final int sampleRate, final double seconds,
+            final long seed, int blockSize)
+    {
+        return PartitionedIr.get("canyon/" + sampleRate + "/" + seconds + "/" + seed,
+                new PartitionedIr.Generator() {
+                    public float[] generate()
+                    {
+                        return canyon(sampleRate, seconds, seed);
+                    }
+                }, blockSize);
+    }
+
+    // A canyon: a few distinct, slightly smeared reflections from distant walls, each duller
+    // than the last, over a diffuse tail that decays by 60 dB in the given time.
+    // Excludes the direct sound.  Normalized to unit energy.
+    static float[] canyon(int sampleRate, double seconds, long seed)
+    {
+        Random random = new Random(seed);
+        float[] ir = new float[(int) (seconds * sampleRate)];
+
+        // Diffuse tail: exponentially decaying noise, low-passed
+        double decay = Math.log(1000.0) / (seconds * sampleRate);
+        double lowPass = 0.0;
+        double coefficient = Math.exp(-2.0 * Math.PI * 3000.0 / sampleRate);
+        for (int i = 0; i < ir.length; ++i) {
+            lowPass = coefficient * lowPass + (1.0 - coefficient) * random.nextGaussian();
+            ir[i] = (float) (0.25 * lowPass * Math.exp(-decay * i));
+        }
+
+        // Wall reflections: a short burst of low-passed noise at each echo time
+        final double[] echoSeconds = { 0.23, 0.51, 0.87, 1.32, 1.9 };
+        final double[] echoGains = { 1.0, 0.7, 0.5, 0.35, 0.25 };
+        int burst = sampleRate / 200;
+        for (int e = 0; e < echoSeconds.length; ++e) {
+            int start = (int) (echoSeconds[e] * sampleRate);
+            double dull = Math.exp(-2.0 * Math.PI * (4000.0 / (e + 1)) / sampleRate);
+            lowPass = 0.0;
+            for (int i = 0; i < burst && start + i < ir.length; ++i) {
+                lowPass = dull * lowPass + (1.0 - dull) * random.nextGaussian();
+                double window = Math.sin(Math.PI * i / burst);
+                ir[start + i] += (float) (echoGains[e] * window * lowPass * 4.0);
+            }
+        }
+
+        double energy = 0.0;
+        for (int i = 0; i < ir.length; ++i) {
+            energy += ir[i] * ir[i];
+        }
+        if (energy > 0.0) {
+            float scale = (float) (1.0 / Math.sqrt(energy));
+            for (int i = 0; i < ir.length; ++i) {
+                ir[i] *= scale;
+            }
+        }
+        return ir;
+    }
+
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// Adaptive jitter buffer for the read side of a ShortPipe or FloatPipe of interleaved audio.
+// Capture and playback run on independent clocks, so over a long session the pipe slowly
+// fills up or runs dry.  This stage keeps the pipe fill level locked to a target delay:
+// it smooths the fill level seen at each read, feeds the error to a PI controller that
+// estimates the rate ratio between the two clocks, and resamples by that ratio with a
+// 4-point cubic Hermite interpolator.  The controller is slow compared to the capture period,
+// so burst-to-burst jitter is absorbed by the pipe and only the long-term drift is corrected.
+// The delay can be changed while running: the read tap then glides to the new delay by
+// playing slightly faster or slower, which bends the pitch briefly instead of clicking.
+// The input is taken from the pipe as floats, which a FloatPipe holds already, and the output
+// is 16-bit PCM.  Used by the pipe reader thread only.  No allocation after the first read.
+
+class JitterBuffer {
+
+    // Maximum deviation of the resampling ratio from 1, i.e. the largest clock drift
+    // that can be tracked.  Small enough that the pitch change is inaudible.
+    private static final double MAX_DEVIATION = 0.002;
+    // Time constant of the fill level smoothing, in seconds
+    private static final double SMOOTHING_SECONDS = 1.0;
+    // Controller gains, per second of fill error: proportional, and integral per second
+    private static final double KP = 0.1;
+    private static final double KI = 0.003;
+    // Delay changes: the largest extra speed-up or slow-down of playback, the rate at which
+    // that approaches the remaining distance, per second of distance, and the shortest
+    // time over which the speed may go from 0 to the maximum
+    private static final double MAX_SLEW = 0.1;
+    private static final double SLEW_GAIN = 1.0;
+    private static final double SLEW_RAMP_SECONDS = 0.2;
+    // Within this distance of the requested delay, in seconds, the glide stops and the fill
+    // level controller takes up the remainder
+    private static final double SLEW_ARRIVED_SECONDS = 0.002;
+    // If the smoothed fill level is this far from the target, in seconds, the target is moved
+    // to the fill level and glides back as for a delay change, rather than leaving the error
+    // to the fill level controller, which would sit at its limit for a minute or more and
+    // corrupt its drift estimate.  An excess follows e.g. a burst from the writer, and is
+    // otherwise drained or dropped from the pipe; a deficit follows the sink priming, or a
+    // stall of the writer, and is otherwise an underrun risk until refilled.
+    private static final double CATCH_UP_SECONDS = 0.05;
+
+    private final FramePipe mPipe;
+    private final int mChannelCount;
+    private final int mSampleRate;
+    private final int mMaxFrames;
+    // target the controller holds; moves gradually toward mRequestedFrames
+    private double mTargetFrames;
+    private volatile int mRequestedFrames;
+    private int mMinDelayFrames;
+    private double mSlew;
+    private volatile int mDelayFrames;      // may be read by any thread
+    private boolean mWaitForInput = true;
+    private boolean mSinkPrimed;
+
+    // input frames read from the pipe but not yet consumed, interleaved, in [-1, 1)
+    private final float[] mInput;
+    private int mInputFrames;
+    // position of the next output frame in mInput, in frames; always >= 1
+    private double mPosition = 1.0;
+
+    private double mSmoothedFill = -1.0;
+    private double mIntegral;
+    private volatile double mRatio = 1.0;   // may be read by any thread
+    private volatile double mDrift;         // may be read by any thread
+    private volatile long mUnderrunFrames;  // may be read by any thread
+
+    // targetFrames is the delay to hold, in frames of data waiting in the pipe.
+    // maxFrames is the largest number of frames that will be requested from read().
+    JitterBuffer(FramePipe pipe, int sampleRate, int targetFrames, int maxFrames)
+    {
+        mPipe = pipe;
+        mChannelCount = pipe.getChannelCount();
+        mSampleRate = sampleRate;
+        mMaxFrames = maxFrames;
+        mMinDelayFrames = 2 * maxFrames;
+        mTargetFrames = Math.max(targetFrames, mMinDelayFrames);
+        mRequestedFrames = targetFrames;
+        mDelayFrames = (int) mTargetFrames;
+        // room for one block at the maximum ratio, plus interpolator history and look-ahead
+        int inputFrames = (int) Math.ceil(maxFrames * (1.0 + MAX_DEVIATION + MAX_SLEW)) + 4;
+        mInput = new float[inputFrames * mChannelCount];
+        mInputFrames = 1; // one frame of silence as history for the interpolator
+    }
+
+    int getChannelCount()
+    {
+        return mChannelCount;
+    }
+
+    int getSampleRate()
+    {
+        return mSampleRate;
+    }
+
+    // Called by the pipe reader thread once the sink buffer has filled up for the first time.
+    // Until then the sink takes blocks faster than real time and drains the pipe, so the
+    // fill level says nothing about the clocks: the ratio is held at 1, and the fill level
+    // is first measured after priming, so that the controller does not wind up on the drop.
+    void setSinkPrimed()
+    {
+        mSinkPrimed = true;
+    }
+
+    // Whether read() waits up to one block period for late input before inserting silence.
+    // A single-threaded simulation turns this off, as nothing can arrive while it waits.
+    void setWaitForInput(boolean waitForInput)
+    {
+        mWaitForInput = waitForInput;
+    }
+
+    // Sets the shortest delay that will be held, in frames; shorter requests are raised to it.
+    // The fill level seen by the reader dips by up to one capture period between bursts, so
+    // a delay below one capture period plus one block cannot be held without underruns.
+    // The default is two blocks.  Must be called before the reader thread starts.
+    void setMinDelay(int frames)
+    {
+        mMinDelayFrames = frames;
+        mTargetFrames = Math.max(mTargetFrames, frames);
+        mDelayFrames = (int) mTargetFrames;
+    }
+
+    // Changes the delay to hold, in frames.  May be called from any thread at any time;
+    // the read tap moves smoothly to the new delay over the following blocks.
+    void setTargetDelay(int targetFrames)
+    {
+        mRequestedFrames = targetFrames;
+    }
+
+    // The delay currently being held, in frames, which lags setTargetDelay() during a glide
+    int getDelayFrames()
+    {
+        return mDelayFrames;
+    }
+
+    // Current resampling ratio: input frames consumed per output frame
+    double getRatio()
+    {
+        return mRatio;
+    }
+
+    // Estimated drift of the capture clock relative to the playback clock, in parts per million.
+    // This is the integral term of the controller, which settles on the long-term rate
+    // difference, whereas getRatio() also includes the correction of the current fill error.
+    double getDriftPpm()
+    {
+        return mDrift * 1e6;
+    }
+
+    // Frames of silence inserted because the pipe ran dry
+    long getUnderrunFrames()
+    {
+        return mUnderrunFrames;
+    }
+
+    // Produces frames frames of interleaved output into buffer at offset, in frames.
+    // frames is clamped to maxFrames.  Waits at most one block period for input, then fills
+    // any shortfall with silence.  Returns the number of frames produced.
+    int read(short[] buffer, int offset, int frames) throws InterruptedException
+    {
+        if (frames > mMaxFrames) {
+            frames = mMaxFrames;
+        }
+        double ratio = updateRatio(frames);
+
+        // Make sure input is available up to the look-ahead of the last output frame
+        int needed = (int) (mPosition + (frames - 1) * ratio) + 3 - mInputFrames;
+        if (needed > 0) {
+            fetch(needed, frames);
+        }
+
+        final int channelCount = mChannelCount;
+        final float[] input = mInput;
+        double position = mPosition;
+        int out = offset * channelCount;
+        for (int i = 0; i < frames; ++i) {
+            int index = (int) position;
+            float t = (float) (position - index);
+            int base = (index - 1) * channelCount;
+            for (int channel = 0; channel < channelCount; ++channel) {
+                int j = base + channel;
+                float xm1 = input[j];
+                float x0 = input[j + channelCount];
+                float x1 = input[j + 2 * channelCount];
+                float x2 = input[j + 3 * channelCount];
+                float c1 = 0.5f * (x1 - xm1);
+                float c2 = xm1 - 2.5f * x0 + 2.0f * x1 - 0.5f * x2;
+                float c3 = 0.5f * (x2 - xm1) + 1.5f * (x0 - x1);
+                float y = (((c3 * t + c2) * t + c1) * t + x0) * 32768.0f;
+                buffer[out++] = y >= 32767.0f ? Short.MAX_VALUE :
+                        y <= -32768.0f ? Short.MIN_VALUE : (short) Math.round(y);
+            }
+            position += ratio;
+        }
+
+        // Discard consumed input, keeping one frame of history before the next position
+        int consumed = (int) position - 1;
+        if (consumed > 0) {
+            System.arraycopy(input, consumed * channelCount, input, 0,
+                    (mInputFrames - consumed) * channelCount);
+            mInputFrames -= consumed;
+            position -= consumed;
+        }
+        mPosition = position;
+        return frames;
+    }
+
+    // Reads needed frames from the pipe into mInput, waiting up to one block period if enabled
+    private void fetch(int needed, int frames) throws InterruptedException
+    {
+        int avail = mPipe.availableToRead();
+        if (mWaitForInput && avail >= 0 && avail < needed) {
+            long blockNs = frames * 1000000000L / mSampleRate;
+            mPipe.waitToRead(needed, blockNs);
+        }
+        int framesRead = 0;
+        for (int tries = 0; framesRead < needed && tries < 2; ++tries) {
+            // a second try only after an overrun, which the pipe has already recovered from
+            int result = mPipe.readFloat(mInput, mInputFrames + framesRead, needed - framesRead);
+            if (result > 0) {
+                framesRead += result;
+            }
+        }
+        if (framesRead < needed) {
+            // Underrun: insert silence
+            final float[] input = mInput;
+            for (int i = (mInputFrames + framesRead) * mChannelCount;
+                    i < (mInputFrames + needed) * mChannelCount; ++i) {
+                input[i] = 0.0f;
+            }
+            mUnderrunFrames += needed - framesRead;
+        }
+        mInputFrames += needed;
+    }
+
+    // Runs the fill level controller once per block, and returns the ratio to use
+    private double updateRatio(int frames)
+    {
+        if (!mSinkPrimed) {
+            return 1.0;
+        }
+        int avail = mPipe.availableToRead();
+        if (avail < 0) {
+            // overrun, the pipe has recovered; measure again next block
+            return mRatio;
+        }
+        // Frames buffered ahead of the read position, in the pipe and in mInput
+        double fill = avail + (mInputFrames - mPosition);
+        double dt = (double) frames / mSampleRate;
+        double slew = updateSlew(frames, dt);
+        if (mSmoothedFill < 0.0) {
+            mSmoothedFill = fill;
+        } else {
+            double alpha = Math.min(1.0, dt / SMOOTHING_SECONDS);
+            mSmoothedFill += alpha * (fill - mSmoothedFill);
+        }
+        if (slew == 0.0
+                && Math.abs(mSmoothedFill - mTargetFrames) > CATCH_UP_SECONDS * mSampleRate) {
+            // Glide back from the current fill level, starting with the next block
+            mTargetFrames = mSmoothedFill;
+        }
+        double error = (mSmoothedFill - mTargetFrames) / mSampleRate;
+        // Conditional integration against windup: while the output is at its limit, the
+        // integral may only move back from it, else it would run on to its own limit and take
+        // minutes to unwind, with the drift estimate wrong all the while.  The integral is
+        // also frozen during delay changes, to keep the drift estimate.
+        double unclamped = KP * error + mIntegral;
+        boolean saturated = (unclamped >= MAX_DEVIATION && error > 0.0)
+                || (unclamped <= -MAX_DEVIATION && error < 0.0);
+        if (slew == 0.0 && !saturated) {
+            mIntegral += KI * error * dt;
+            if (mIntegral > MAX_DEVIATION) {
+                mIntegral = MAX_DEVIATION;
+            } else if (mIntegral < -MAX_DEVIATION) {
+                mIntegral = -MAX_DEVIATION;
+            }
+        }
+        mDrift = mIntegral;
+        double deviation = KP * error + mIntegral;
+        if (deviation > MAX_DEVIATION) {
+            deviation = MAX_DEVIATION;
+        } else if (deviation < -MAX_DEVIATION) {
+            deviation = -MAX_DEVIATION;
+        }
+        double ratio = 1.0 + deviation + slew;
+        mRatio = ratio;
+        return ratio;
+    }
+
+    // Moves the controller target toward the requested delay, and returns the extra ratio
+    // that moves the read tap along with it.  The extra frames consumed or repeated are
+    // known exactly, so the target and the smoothed fill level are moved by the same amount,
+    // and the fill level controller sees no error from the delay change itself.
+    private double updateSlew(int frames, double dt)
+    {
+        int requested = Math.max(mRequestedFrames, mMinDelayFrames);
+        double distance = (mTargetFrames - requested) / mSampleRate;
+        double wanted = distance * SLEW_GAIN;
+        if (wanted > MAX_SLEW) {
+            wanted = MAX_SLEW;
+        } else if (wanted < -MAX_SLEW) {
+            wanted = -MAX_SLEW;
+        }
+        double step = MAX_SLEW * dt / SLEW_RAMP_SECONDS;
+        double slew = mSlew;
+        if (wanted > slew + step) {
+            slew += step;
+        } else if (wanted < slew - step) {
+            slew -= step;
+        } else {
+            slew = wanted;
+        }
+        if (Math.abs(distance) <= SLEW_ARRIVED_SECONDS) {
+            mTargetFrames = requested;
+            mDelayFrames = requested;
+            mSlew = 0.0;
+            return 0.0;
+        }
+        double moved = slew * frames;
+        mTargetFrames -= moved;
+        mDelayFrames = (int) mTargetFrames;
+        if (mSmoothedFill >= 0.0) {
+            mSmoothedFill -= moved;
+        }
+        mSlew = slew;
+        return moved / frames;
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A histogram of durations in ns, recorded by one thread and read by others, without locks
+// or allocation.  Buckets are log-linear: each power of 2 is split into SUB_BUCKETS equal
+// buckets, so any duration is placed to within 1 / SUB_BUCKETS of its value, from 1 ns up to
+// about 18 minutes, in a fixed 9 KB array.  Only the recording thread writes the counts, with
+// lazySet, so record() is just a few instructions and never waits.
+//
+// Any one other thread at a time may take snapshots with getSnapshot(), and reset().  A reset
+// does not touch the counts: it remembers them as a baseline, which later snapshots subtract.
+// Counts in a snapshot are read one at a time while recording continues, so a snapshot may
+// include part of a concurrent record(); that is at most one sample out.
+
+final class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // durations of 2^MAX_EXPONENT ns or more all go in the last bucket
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = SUB_BUCKETS * (MAX_EXPONENT - SUB_BUCKET_BITS + 1);
+
+    private final String mName;
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private volatile long mMaxNs;               // since construction, not reset
+
+    // Owned by the thread that calls getSnapshot() and reset()
+    private final long[] mBaseline = new long[BUCKETS];
+
+    LatencyHistogram(String name)
+    {
+        mName = name;
+    }
+
+    String getName()
+    {
+        return mName;
+    }
+
+    // Adds one duration.  Only one thread may record.
+    void record(long ns)
+    {
+        if (ns < 0) {
+            ns = 0;
+        }
+        int index = bucket(ns);
+        mCounts.lazySet(index, mCounts.get(index) + 1);
+        if (ns > mMaxNs) {
+            mMaxNs = ns;
+        }
+    }
+
+    // Fills in snapshot with the counts since construction or the last reset()
+    void getSnapshot(Snapshot snapshot)
+    {
+        final long[] counts = snapshot.mCounts;
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = mCounts.get(i) - mBaseline[i];
+            total += counts[i];
+        }
+        snapshot.mName = mName;
+        snapshot.mCount = total;
+        snapshot.mMaxNs = mMaxNs;
+    }
+
+    // Starts the counts again from zero, as seen by later snapshots
+    void reset()
+    {
+        for (int i = 0; i < BUCKETS; ++i) {
+            mBaseline[i] = mCounts.get(i);
+        }
+    }
+
+    static int bucket(long ns)
+    {
+        if (ns < SUB_BUCKETS) {
+            return (int) ns;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(ns);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * (shift + 1) + (int) (ns >>> shift) - SUB_BUCKETS;
+    }
+
+    // The largest duration that goes in the given bucket
+    static long bucketMax(int index)
+    {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        if (index == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    // The counts of a LatencyHistogram at one time.  Preallocate one per histogram, and reuse.
+    static final class Snapshot {
+
+        final long[] mCounts = new long[BUCKETS];
+        String mName;
+        long mCount;
+        long mMaxNs;            // the exact maximum since the histogram was constructed
+
+        // Returns an upper bound on the duration that at least fraction q of the samples were
+        // at or below, exact to within one bucket; or 0 if there are no samples
+        long quantile(double q)
+        {
+            if (mCount == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(q * mCount));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += mCounts[i];
+                if (seen >= target) {
+                    return Math.min(bucketMax(i), mMaxNs);
+                }
+            }
+            return mMaxNs;
+        }
+
+        // The maximum in this snapshot, to within one bucket
+        long getMax()
+        {
+            return quantile(1.0);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s p50 %.2f, p99 %.2f, p99.9 %.2f, max %.2f ms (%d)", mName,
+                    quantile(0.5) * 1e-6, quantile(0.99) * 1e-6, quantile(0.999) * 1e-6,
+                    getMax() * 1e-6, mCount);
+        }
+    }
+
+}
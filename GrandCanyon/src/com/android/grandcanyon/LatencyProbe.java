@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Measures the round-trip latency of the audio devices: from handing a sample to the sink to
+// getting it back from the source, over the acoustic or electrical loopback between them.
+// A maximum length sequence is injected into the playback path, replacing the echo, while the
+// capture path is recorded; then the lag is found by FFT cross-correlation, off the audio
+// threads.  Times are taken from an AudioClock, so the same code runs against simulated devices.
+//
+// Threads: arm() and analyze() on any one control thread; inject() on the playback thread
+// and capture() on the capture thread, neither of which allocates or blocks.  The state is
+// changed by both the control and capture threads, so every transition other than arm() is
+// a compareAndSet() from the state it expects, and loses to a concurrent one.
+
+final class LatencyProbe {
+
+    // The sequence is 2^MLS_BITS - 1 samples long: 4095, or 256 ms at 16 kHz
+    static final int MLS_BITS = 12;
+    // Galois LFSR taps for x^12 + x^11 + x^10 + x^4 + 1, which is primitive
+    private static final int MLS_TAPS = 0xE08;
+    private static final float PROBE_AMPLITUDE = 0.3f;
+    // Longest round trip that can be measured
+    static final double MAX_LATENCY_SECONDS = 1.0;
+    // Peaks within this fraction of the largest one count as arrivals; the earliest one wins,
+    // as later arrivals are the probe coming round the echo loop again
+    private static final double ARRIVAL_THRESHOLD = 0.5;
+
+    private static final int IDLE = 0;
+    private static final int ARMED = 1;         // capture starts at the next capture()
+    private static final int CAPTURING = 2;     // injection starts at the next inject()
+    private static final int CAPTURED = 3;      // ready for analyze()
+
+    // The result of a measurement
+    static final class Result {
+        final boolean mValid;
+        final double mLatencyMs;    // round trip
+        final double mConfidence;   // 0 to 1; 1 - highest sidelobe / peak
+        final double mPsrDb;        // peak to sidelobe ratio
+
+        Result(boolean valid, double latencyMs, double confidence, double psrDb)
+        {
+            mValid = valid;
+            mLatencyMs = latencyMs;
+            mConfidence = confidence;
+            mPsrDb = psrDb;
+        }
+
+        @Override
+        public String toString()
+        {
+            if (!mValid) {
+                return "round trip: no probe found";
+            }
+            return String.format("round trip %.1f ms (confidence %.2f, PSR %.1f dB)",
+                    mLatencyMs, mConfidence, mPsrDb);
+        }
+    }
+
+    private final AudioClock mClock;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final float[] mProbe;
+    private final short[] mProbePcm;
+
+    private final AtomicInteger mState = new AtomicInteger(IDLE);
+    private volatile int mGeneration;   // incremented by each arm()
+    private volatile Result mResult;
+
+    // playback thread only, except mInjectNs which analyze() reads after CAPTURED
+    private int mInjectGeneration;      // the measurement being injected
+    private int mInjected;              // probe samples injected so far
+    private volatile long mInjectNs = NOT_INJECTED; // when the first probe sample went to the sink
+    private static final long NOT_INJECTED = Long.MIN_VALUE;
+
+    // capture thread only, except what analyze() reads after CAPTURED
+    private final float[] mCapture;
+    private int mCaptured;
+    private long mCaptureStartNs;       // when the first captured sample was captured
+
+    LatencyProbe(AudioClock clock, int sampleRate, int channelCount)
+    {
+        mClock = clock;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        int length = (1 << MLS_BITS) - 1;
+        mProbe = new float[length];
+        mProbePcm = new short[length];
+        int lfsr = 1;
+        for (int i = 0; i < length; ++i) {
+            mProbe[i] = (lfsr & 1) != 0 ? 1.0f : -1.0f;
+            mProbePcm[i] = (short) (mProbe[i] * PROBE_AMPLITUDE * 32767.0f);
+            lfsr = (lfsr & 1) != 0 ? (lfsr >>> 1) ^ MLS_TAPS : lfsr >>> 1;
+        }
+        mCapture = new float[length + (int) (MAX_LATENCY_SECONDS * sampleRate)];
+    }
+
+    // Starts a measurement; the previous result is cleared
+    void arm()
+    {
+        mResult = null;
+        mInjectNs = NOT_INJECTED;
+        ++mGeneration;
+        mState.set(ARMED);
+    }
+
+    boolean isCaptured()
+    {
+        return mState.get() == CAPTURED;
+    }
+
+    // The result of the last analyze(), or null if none since arm()
+    Result getResult()
+    {
+        return mResult;
+    }
+
+    // Playback side: replaces the samples of a block of interleaved PCM with the probe while
+    // the probe is being injected.  Called with each block just before it is handed to the sink.
+    void inject(short[] block, int offset, int samples)
+    {
+        if (!startInjection()) {
+            return;
+        }
+        final int channelCount = mChannelCount;
+        for (int i = offset; i < offset + samples && mInjected < mProbePcm.length;
+                i += channelCount) {
+            short sample = mProbePcm[mInjected++];
+            for (int channel = 0; channel < channelCount; ++channel) {
+                block[i + channel] = sample;
+            }
+        }
+    }
+
+    // As above, for count bytes of native-order PCM in ring at offset
+    void inject(ByteBuffer ring, int offset, int count)
+    {
+        if (!startInjection()) {
+            return;
+        }
+        final int channelCount = mChannelCount;
+        for (int i = offset; i < offset + count && mInjected < mProbePcm.length;
+                i += channelCount * 2) {
+            short sample = mProbePcm[mInjected++];
+            for (int channel = 0; channel < channelCount; ++channel) {
+                ring.putShort(i + channel * 2, sample);
+            }
+        }
+    }
+
+    // Returns true while probe samples remain to be injected
+    private boolean startInjection()
+    {
+        if (mState.get() != CAPTURING) {
+            return false;
+        }
+        int generation = mGeneration;
+        if (generation != mInjectGeneration) {
+            mInjectGeneration = generation;
+            mInjected = 0;
+            mInjectNs = mClock.nanoTime();
+        }
+        return mInjected < mProbePcm.length;
+    }
+
+    // Capture side: records the first channel of count bytes of native-order PCM just read
+    // into the segments of ring, while a measurement is capturing.  Called just after the read.
+    void capture(ByteBuffer ring, Pipe.Segments segments, int count)
+    {
+        int state = mState.get();
+        if (state != ARMED && state != CAPTURING) {
+            return;
+        }
+        final int frameSize = mChannelCount * 2;
+        if (state == ARMED) {
+            // The frames just read were captured over the last count / frameSize frame periods
+            mCaptureStartNs = mClock.nanoTime()
+                    - (long) (count / frameSize) * 1000000000L / mSampleRate;
+            mCaptured = 0;
+        }
+        int count0 = Math.min(count, segments.mLength0);
+        captureRange(ring, segments.mOffset0, count0);
+        captureRange(ring, segments.mOffset1, count - count0);
+        // Fails if arm() or a timeout changed the state meanwhile; a re-arm restarts next time
+        if (mCaptured == mCapture.length) {
+            mState.compareAndSet(state, CAPTURED);
+        } else if (state == ARMED) {
+            mState.compareAndSet(ARMED, CAPTURING);
+        }
+    }
+
+    private void captureRange(ByteBuffer ring, int offset, int count)
+    {
+        final float scale = 1.0f / 32768.0f;
+        final int frameSize = mChannelCount * 2;
+        for (int i = offset; i < offset + count && mCaptured < mCapture.length; i += frameSize) {
+            mCapture[mCaptured++] = ring.getShort(i) * scale;
+        }
+    }
+
+    // Finds the probe in the capture by cross-correlation, and stores and returns the result.
+    // Must be called after isCaptured() returns true, not on an audio thread, as it allocates.
+    Result analyze()
+    {
+        final int probeLength = mProbe.length;
+        final int captureLength = mCapture.length;
+        int size = Integer.highestOneBit(captureLength + probeLength - 1) << 1;
+        Fft fft = new Fft(size);
+        float[] padded = new float[size];
+        float[] captureRe = new float[fft.getBins()];
+        float[] captureIm = new float[fft.getBins()];
+        float[] probeRe = new float[fft.getBins()];
+        float[] probeIm = new float[fft.getBins()];
+        System.arraycopy(mCapture, 0, padded, 0, captureLength);
+        fft.forward(padded, captureRe, captureIm, 0);
+        Arrays.fill(padded, 0.0f);
+        System.arraycopy(mProbe, 0, padded, 0, probeLength);
+        fft.forward(padded, probeRe, probeIm, 0);
+        // correlation = capture times the conjugate of the probe
+        for (int k = 0; k < captureRe.length; ++k) {
+            float re = captureRe[k] * probeRe[k] + captureIm[k] * probeIm[k];
+            float im = captureIm[k] * probeRe[k] - captureRe[k] * probeIm[k];
+            captureRe[k] = re;
+            captureIm[k] = im;
+        }
+        float[] correlation = padded;
+        fft.inverse(captureRe, captureIm, 0, correlation);
+
+        // Lags from 0 to captureLength - probeLength have the whole probe inside the capture
+        int lags = captureLength - probeLength + 1;
+        float max = 0.0f;
+        for (int lag = 0; lag < lags; ++lag) {
+            max = Math.max(max, Math.abs(correlation[lag]));
+        }
+        int peak = -1;
+        for (int lag = 0; lag < lags; ++lag) {
+            if (Math.abs(correlation[lag]) >= ARRIVAL_THRESHOLD * max) {
+                peak = lag;
+                break;
+            }
+        }
+        Result result;
+        long injectNs = mInjectNs;
+        if (max <= 0.0f || peak < 0 || injectNs == NOT_INJECTED) {
+            result = new Result(false, 0.0, 0.0, 0.0);
+        } else {
+            // Refine the peak to a fraction of a sample with a parabola through its neighbours
+            double offset = 0.0;
+            if (peak > 0 && peak < lags - 1) {
+                double a = Math.abs(correlation[peak - 1]);
+                double b = Math.abs(correlation[peak]);
+                double c = Math.abs(correlation[peak + 1]);
+                double denominator = a - 2.0 * b + c;
+                if (denominator < 0.0) {
+                    offset = 0.5 * (a - c) / denominator;
+                }
+            }
+            // The largest sidelobe, away from the main lobe of the peak
+            int guard = Math.max(2, mSampleRate / 1000);
+            float sidelobe = 0.0f;
+            for (int lag = 0; lag < lags; ++lag) {
+                if (Math.abs(lag - peak) > guard) {
+                    sidelobe = Math.max(sidelobe, Math.abs(correlation[lag]));
+                }
+            }
+            float peakValue = Math.abs(correlation[peak]);
+            double arrivalNs = mCaptureStartNs + (peak + offset) * 1e9 / mSampleRate;
+            double latencyMs = (arrivalNs - injectNs) / 1e6;
+            double confidence = Math.max(0.0, 1.0 - sidelobe / peakValue);
+            double psrDb = sidelobe > 0.0f ? 20.0 * Math.log10(peakValue / sidelobe) : 99.0;
+            result = new Result(true, latencyMs, confidence, psrDb);
+        }
+        mResult = result;
+        // Unless arm() started a new measurement meanwhile
+        mState.compareAndSet(CAPTURED, IDLE);
+        return result;
+    }
+
+    // Abandons a measurement that has not finished capturing.  Returns false, changing
+    // nothing, if the capture has completed, in which case it should be analyzed instead.
+    private boolean cancel()
+    {
+        for (;;) {
+            int state = mState.get();
+            if (state == CAPTURED) {
+                return false;
+            }
+            if (mState.compareAndSet(state, IDLE)) {
+                return true;
+            }
+        }
+    }
+
+    // Arms, then waits for the capture and analyzes it on a new background thread.
+    // The result appears in getResult(), or a failed one if the capture does not complete
+    // within timeoutMs, e.g. because the devices are not running.
+    void measureInBackground(final long timeoutMs)
+    {
+        arm();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                long deadline = System.currentTimeMillis() + timeoutMs;
+                while (!isCaptured()) {
+                    if (System.currentTimeMillis() > deadline) {
+                        if (cancel()) {
+                            mResult = new Result(false, 0.0, 0.0, 0.0);
+                            return;
+                        }
+                        break;
+                    }
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        if (cancel()) {
+                            return;
+                        }
+                        break;
+                    }
+                }
+                analyze();
+            }
+        });
+        thread.setName("LatencyProbe");
+        thread.start();
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// Peak limiter, the last stage before conversion back to PCM, so that the echo and any
+// gain never clip.  Instant attack, exponential release; all channels share one gain.
+
+final class Limiter implements BlockProcessor {
+
+    private final float mThreshold;
+    private final double mReleaseMs;
+    private int mChannelCount;
+    private float mReleaseCoefficient;
+    private float mEnvelope;
+
+    Limiter(float thresholdDb, double releaseMs)
+    {
+        mThreshold = (float) Math.pow(10.0, thresholdDb / 20.0);
+        mReleaseMs = releaseMs;
+    }
+
+    public String getName()
+    {
+        return "limiter";
+    }
+
+    public void prepare(int sampleRate, int channelCount, int maxFrames)
+    {
+        mChannelCount = channelCount;
+        mReleaseCoefficient = (float) Math.exp(-1000.0 / (mReleaseMs * sampleRate));
+        mEnvelope = 0.0f;
+    }
+
+    public void process(float[] buffer, int frames)
+    {
+        final int channelCount = mChannelCount;
+        final int count = frames * channelCount;
+        final float threshold = mThreshold;
+        final float release = mReleaseCoefficient;
+        float envelope = mEnvelope;
+        for (int i = 0; i < count; i += channelCount) {
+            float peak = 0.0f;
+            for (int channel = 0; channel < channelCount; ++channel) {
+                peak = Math.max(peak, Math.abs(buffer[i + channel]));
+            }
+            envelope = peak > envelope ? peak : envelope * release + peak * (1.0f - release);
+            if (envelope > threshold) {
+                float gain = threshold / envelope;
+                for (int channel = 0; channel < channelCount; ++channel) {
+                    buffer[i + channel] *= gain;
+                }
+            }
+        }
+        mEnvelope = envelope;
+    }
+
+}
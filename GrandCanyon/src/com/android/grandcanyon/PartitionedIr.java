@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.util.HashMap;
+
+// The spectrum of an impulse response cut into partitions of blockSize samples, each
+// zero-padded to 2 * blockSize and transformed, as used by ConvolutionReverb.  Computing it
+// for a long response takes a noticeable time, as does generating a synthetic response, so
+// spectra are cached by a key that identifies the response, and by block size, for the life
+// of the process, and the response is only generated on a cache miss.  Immutable once built,
+// so one instance may be shared by any number of reverbs on any threads.
+
+final class PartitionedIr {
+
+    final int mBlockSize;
+    final int mPartitions;
+    final int mBins;                // blockSize + 1 bins per partition
+    final float[] mRe;              // partition p occupies [p * mBins, (p + 1) * mBins)
+    final float[] mIm;
+
+    // Generates an impulse response on a cache miss
+    interface Generator {
+        float[] generate();
+    }
+
+    private static final HashMap<String, PartitionedIr> sCache =
+            new HashMap<String, PartitionedIr>();
+
+    // Returns the spectrum for blockSize of the impulse response identified by key, from the
+    // cache if present, otherwise generated now and cached.  key must include every parameter
+    // that the generated response depends on.  blockSize must be a power of 2.
+    static PartitionedIr get(String key, Generator generator, int blockSize)
+    {
+        key = key + "/" + blockSize;
+        synchronized (sCache) {
+            PartitionedIr spectrum = sCache.get(key);
+            if (spectrum == null) {
+                spectrum = new PartitionedIr(generator.generate(), blockSize);
+                sCache.put(key, spectrum);
+            }
+            return spectrum;
+        }
+    }
+
+    private PartitionedIr(float[] ir, int blockSize)
+    {
+        mBlockSize = blockSize;
+        mPartitions = Math.max(1, (ir.length + blockSize - 1) / blockSize);
+        mBins = blockSize + 1;
+        mRe = new float[mPartitions * mBins];
+        mIm = new float[mPartitions * mBins];
+        Fft fft = new Fft(2 * blockSize);
+        float[] padded = new float[2 * blockSize];
+        for (int p = 0; p < mPartitions; ++p) {
+            int start = p * blockSize;
+            int length = Math.min(blockSize, ir.length - start);
+            System.arraycopy(ir, start, padded, 0, length);
+            for (int i = length; i < blockSize; ++i) {
+                padded[i] = 0.0f;
+            }
+            fft.forward(padded, mRe, mIm, p * mBins);
+        }
+    }
+
+}
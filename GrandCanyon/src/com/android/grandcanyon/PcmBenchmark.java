@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+// Times every PcmConversions kernel on a plain JVM, in ns per sample over blocks of
+// BLOCK_FRAMES stereo frames that stay in cache, as in the audio path.  Each kernel is run
+// trials times after a warm-up long enough for the JIT, and the median trial is reported.
+// Uses no Android classes.
+//
+// To see which kernels the JIT vectorizes, compare a run on HotSpot with a run that adds
+// -XX:-UseSuperWord, which disables its loop vectorizer: a vectorized kernel slows down.
+//
+// Usage: java com.android.grandcanyon.PcmBenchmark [milliseconds [trials]]
+// where milliseconds is the length of each trial of each kernel.
+
+final class PcmBenchmark {
+
+    static final int BLOCK_FRAMES = 1024;
+    static final int CHANNEL_COUNT = 2;
+    static final int SAMPLES = BLOCK_FRAMES * CHANNEL_COUNT;
+
+    private abstract static class Kernel {
+        final String mName;
+
+        Kernel(String name)
+        {
+            mName = name;
+        }
+
+        // Converts one block
+        abstract void run();
+    }
+
+    // Inputs, filled with random full-scale data, and outputs
+    final byte[] mPcm8 = new byte[SAMPLES];
+    final short[] mPcm16 = new short[SAMPLES];
+    final byte[] mPcm16Le = new byte[SAMPLES * 2];
+    final byte[] mPcm24 = new byte[SAMPLES * 3];
+    final int[] mPcm32 = new int[SAMPLES];
+    final float[] mFloat = new float[SAMPLES];
+    final ByteBuffer mBuffer =
+            ByteBuffer.allocateDirect(SAMPLES * 4).order(ByteOrder.nativeOrder());
+    final float[] mFloatOut = new float[SAMPLES * 2];
+    final short[] mPcm16Out = new short[SAMPLES * 2];
+    final float[][] mFloatPlanes = new float[CHANNEL_COUNT][BLOCK_FRAMES];
+    final short[][] mPcm16Planes = new short[CHANNEL_COUNT][BLOCK_FRAMES];
+    int mSeed = 1;
+
+    PcmBenchmark()
+    {
+        Random random = new Random(1);
+        random.nextBytes(mPcm8);
+        random.nextBytes(mPcm16Le);
+        random.nextBytes(mPcm24);
+        for (int i = 0; i < SAMPLES; ++i) {
+            mPcm16[i] = (short) random.nextInt();
+            mPcm32[i] = random.nextInt();
+            // a little beyond full scale, so that the clamps are exercised
+            mFloat[i] = (random.nextFloat() * 2.0f - 1.0f) * 1.1f;
+            mBuffer.putFloat(4 * i, mFloat[i]);
+        }
+    }
+
+    Kernel[] kernels()
+    {
+        return new Kernel[] {
+            new Kernel("pcm8ToFloat") { void run() {
+                PcmConversions.pcm8ToFloat(mPcm8, 0, mFloatOut, 0, SAMPLES); } },
+            new Kernel("pcm16ToFloat") { void run() {
+                PcmConversions.pcm16ToFloat(mPcm16, 0, mFloatOut, 0, SAMPLES); } },
+            new Kernel("pcm16LeToFloat") { void run() {
+                PcmConversions.pcm16LeToFloat(mPcm16Le, 0, mFloatOut, 0, SAMPLES); } },
+            new Kernel("pcm24ToFloat") { void run() {
+                PcmConversions.pcm24ToFloat(mPcm24, 0, mFloatOut, 0, SAMPLES); } },
+            new Kernel("pcm32ToFloat") { void run() {
+                PcmConversions.pcm32ToFloat(mPcm32, 0, mFloatOut, 0, SAMPLES); } },
+            new Kernel("pcm8ToFloat(ByteBuffer)") { void run() {
+                PcmConversions.pcm8ToFloat(mBuffer, 0, mFloatOut, 0, SAMPLES); } },
+            new Kernel("pcm16ToFloat(ByteBuffer)") { void run() {
+                PcmConversions.pcm16ToFloat(mBuffer, 0, mFloatOut, 0, SAMPLES); } },
+            new Kernel("pcm24ToFloat(ByteBuffer)") { void run() {
+                PcmConversions.pcm24ToFloat(mBuffer, 0, mFloatOut, 0, SAMPLES); } },
+            new Kernel("pcm32ToFloat(ByteBuffer)") { void run() {
+                PcmConversions.pcm32ToFloat(mBuffer, 0, mFloatOut, 0, SAMPLES); } },
+            new Kernel("floatToFloat(ByteBuffer,float[])") { void run() {
+                PcmConversions.floatToFloat(mBuffer, 0, mFloatOut, 0, SAMPLES); } },
+            new Kernel("floatToPcm8") { void run() {
+                PcmConversions.floatToPcm8(mFloat, 0, mPcm8, 0, SAMPLES); } },
+            new Kernel("floatToPcm16") { void run() {
+                PcmConversions.floatToPcm16(mFloat, 0, mPcm16Out, 0, SAMPLES); } },
+            new Kernel("floatToPcm16Dithered") { void run() {
+                mSeed = PcmConversions.floatToPcm16Dithered(mFloat, 0, mPcm16Out, 0, SAMPLES,
+                        mSeed); } },
+            new Kernel("floatToPcm16Le") { void run() {
+                PcmConversions.floatToPcm16Le(mFloat, 0, mPcm16Le, 0, SAMPLES); } },
+            new Kernel("floatToPcm24") { void run() {
+                PcmConversions.floatToPcm24(mFloat, 0, mPcm24, 0, SAMPLES); } },
+            new Kernel("floatToPcm32") { void run() {
+                PcmConversions.floatToPcm32(mFloat, 0, mPcm32, 0, SAMPLES); } },
+            new Kernel("floatToPcm8(ByteBuffer)") { void run() {
+                PcmConversions.floatToPcm8(mFloat, 0, mBuffer, 0, SAMPLES); } },
+            new Kernel("floatToPcm16(ByteBuffer)") { void run() {
+                PcmConversions.floatToPcm16(mFloat, 0, mBuffer, 0, SAMPLES); } },
+            new Kernel("floatToPcm24(ByteBuffer)") { void run() {
+                PcmConversions.floatToPcm24(mFloat, 0, mBuffer, 0, SAMPLES); } },
+            new Kernel("floatToPcm32(ByteBuffer)") { void run() {
+                PcmConversions.floatToPcm32(mFloat, 0, mBuffer, 0, SAMPLES); } },
+            new Kernel("floatToFloat(float[],ByteBuffer)") { void run() {
+                PcmConversions.floatToFloat(mFloat, 0, mBuffer, 0, SAMPLES); } },
+            new Kernel("pcm8ToPcm16") { void run() {
+                PcmConversions.pcm8ToPcm16(mPcm8, 0, mPcm16Out, 0, SAMPLES); } },
+            new Kernel("pcm32ToPcm16") { void run() {
+                PcmConversions.pcm32ToPcm16(mPcm32, 0, mPcm16Out, 0, SAMPLES); } },
+            new Kernel("pcm16ToPcm32") { void run() {
+                PcmConversions.pcm16ToPcm32(mPcm16, 0, mPcm32, 0, SAMPLES); } },
+            new Kernel("deinterleave(float)") { void run() {
+                PcmConversions.deinterleave(mFloat, 0, mFloatPlanes, 0, BLOCK_FRAMES); } },
+            new Kernel("interleave(float)") { void run() {
+                PcmConversions.interleave(mFloatPlanes, 0, mFloatOut, 0, BLOCK_FRAMES); } },
+            new Kernel("deinterleave(short)") { void run() {
+                PcmConversions.deinterleave(mPcm16, 0, mPcm16Planes, 0, BLOCK_FRAMES); } },
+            new Kernel("interleave(short)") { void run() {
+                PcmConversions.interleave(mPcm16Planes, 0, mPcm16Out, 0, BLOCK_FRAMES); } },
+            // the mono kernels treat the stereo block as twice as many mono frames
+            new Kernel("monoToStereo(float)") { void run() {
+                PcmConversions.monoToStereo(mFloat, 0, mFloatOut, 0, SAMPLES); } },
+            new Kernel("stereoToMono(float)") { void run() {
+                PcmConversions.stereoToMono(mFloat, 0, mFloatOut, 0, BLOCK_FRAMES); } },
+            new Kernel("monoToStereo(short)") { void run() {
+                PcmConversions.monoToStereo(mPcm16, 0, mPcm16Out, 0, SAMPLES); } },
+            new Kernel("stereoToMono(short)") { void run() {
+                PcmConversions.stereoToMono(mPcm16, 0, mPcm16Out, 0, BLOCK_FRAMES); } },
+        };
+    }
+
+    // Returns the time per input sample in ns, running kernel for about durationNs
+    static double time(Kernel kernel, long durationNs)
+    {
+        long startNs = System.nanoTime();
+        long endNs = startNs + durationNs;
+        long blocks = 0;
+        long nowNs;
+        do {
+            for (int i = 0; i < 64; ++i) {
+                kernel.run();
+            }
+            blocks += 64;
+            nowNs = System.nanoTime();
+        } while (nowNs < endNs);
+        return (double) (nowNs - startNs) / (blocks * SAMPLES);
+    }
+
+    public static void main(String[] args)
+    {
+        long durationNs = (args.length > 0 ? Long.parseLong(args[0]) : 200) * 1000000L;
+        int trials = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        PcmBenchmark benchmark = new PcmBenchmark();
+        double[] times = new double[trials];
+        for (Kernel kernel : benchmark.kernels()) {
+            time(kernel, 5 * durationNs);
+            for (int i = 0; i < trials; ++i) {
+                times[i] = time(kernel, durationNs);
+            }
+            Arrays.sort(times);
+            System.out.printf("%-32s %6.3f ns/sample%n", kernel.mName, times[trials / 2]);
+        }
+    }
+
+}
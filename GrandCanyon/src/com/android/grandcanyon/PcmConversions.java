@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Bulk conversions between the PCM formats used by Android audio and float, plus interleave,
+// deinterleave and mono/stereo mixing.  Floats are nominally in [-1.0, 1.0), and conversions
+// to integer PCM round and saturate.  Offsets and counts are in samples unless named as bytes.
+//
+// Each kernel is one counted loop with no calls other than Math.round, so that it does not
+// allocate and the JIT can unroll it.  Only some are vectorized: PcmBenchmark on HotSpot
+// shows the conversions of 8, 16 and 32-bit arrays to float running 2 to 2.5 times faster
+// with its vectorizer than without, but the conversions from float, whose rounding and
+// clamping keep them scalar, the byte packing ones and the channel layout ones no faster.
+// The ByteBuffer variants use absolute gets and puts in the buffer's own byte order; for a
+// large block it is usually faster to bulk get into an array and use the array kernel, as
+// ProcessingChain does.
+//
+// Formats: PCM8 is unsigned with a bias of 128, PCM16 is signed, PCM24 is packed 3 bytes per
+// sample, PCM32 is signed, and byte arrays are little-endian as Android devices are.
+
+final class PcmConversions {
+
+    private static final float SCALE8 = 1.0f / 128.0f;
+    private static final float SCALE16 = 1.0f / 32768.0f;
+    private static final float SCALE24 = 1.0f / 8388608.0f;
+    private static final float SCALE32 = 1.0f / 2147483648.0f;
+
+    private PcmConversions()
+    {
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // To float
+
+    static void pcm8ToFloat(byte[] src, int srcOffset, float[] dst, int dstOffset, int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            dst[dstOffset + i] = ((src[srcOffset + i] & 0xFF) - 128) * SCALE8;
+        }
+    }
+
+    static void pcm16ToFloat(short[] src, int srcOffset, float[] dst, int dstOffset, int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            dst[dstOffset + i] = src[srcOffset + i] * SCALE16;
+        }
+    }
+
+    static void pcm16LeToFloat(byte[] src, int srcByteOffset, float[] dst, int dstOffset,
+            int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            int j = srcByteOffset + 2 * i;
+            dst[dstOffset + i] = (short) ((src[j] & 0xFF) | (src[j + 1] << 8)) * SCALE16;
+        }
+    }
+
+    static void pcm24ToFloat(byte[] src, int srcByteOffset, float[] dst, int dstOffset,
+            int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            int j = srcByteOffset + 3 * i;
+            // the top byte is sign extended by the shift
+            int value = (src[j] & 0xFF) | ((src[j + 1] & 0xFF) << 8) | (src[j + 2] << 16);
+            dst[dstOffset + i] = value * SCALE24;
+        }
+    }
+
+    static void pcm32ToFloat(int[] src, int srcOffset, float[] dst, int dstOffset, int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            dst[dstOffset + i] = src[srcOffset + i] * SCALE32;
+        }
+    }
+
+    static void pcm8ToFloat(ByteBuffer src, int srcByteOffset, float[] dst, int dstOffset,
+            int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            dst[dstOffset + i] = ((src.get(srcByteOffset + i) & 0xFF) - 128) * SCALE8;
+        }
+    }
+
+    static void pcm16ToFloat(ByteBuffer src, int srcByteOffset, float[] dst, int dstOffset,
+            int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            dst[dstOffset + i] = src.getShort(srcByteOffset + 2 * i) * SCALE16;
+        }
+    }
+
+    static void pcm24ToFloat(ByteBuffer src, int srcByteOffset, float[] dst, int dstOffset,
+            int count)
+    {
+        // the offsets of the low and high bytes of each sample, in the buffer's byte order
+        final int low = src.order() == ByteOrder.LITTLE_ENDIAN ? 0 : 2;
+        final int high = 2 - low;
+        for (int i = 0; i < count; ++i) {
+            int j = srcByteOffset + 3 * i;
+            int value = (src.get(j + low) & 0xFF) | ((src.get(j + 1) & 0xFF) << 8)
+                    | (src.get(j + high) << 16);
+            dst[dstOffset + i] = value * SCALE24;
+        }
+    }
+
+    static void pcm32ToFloat(ByteBuffer src, int srcByteOffset, float[] dst, int dstOffset,
+            int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            dst[dstOffset + i] = src.getInt(srcByteOffset + 4 * i) * SCALE32;
+        }
+    }
+
+    static void floatToFloat(ByteBuffer src, int srcByteOffset, float[] dst, int dstOffset,
+            int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            dst[dstOffset + i] = src.getFloat(srcByteOffset + 4 * i);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // From float
+
+    static void floatToPcm8(float[] src, int srcOffset, byte[] dst, int dstOffset, int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            int value = Math.round(src[srcOffset + i] * 128.0f);
+            value = value > 127 ? 127 : value < -128 ? -128 : value;
+            dst[dstOffset + i] = (byte) (value + 128);
+        }
+    }
+
+    static void floatToPcm16(float[] src, int srcOffset, short[] dst, int dstOffset, int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            int value = Math.round(src[srcOffset + i] * 32768.0f);
+            dst[dstOffset + i] = (short) (value > Short.MAX_VALUE ? Short.MAX_VALUE :
+                    value < Short.MIN_VALUE ? Short.MIN_VALUE : value);
+        }
+    }
+
+    // As floatToPcm16, with TPDF dither of one LSB peak, the difference of two uniform random
+    // values.  The dither generator state is passed in and the next state is returned, so that
+    // the caller keeps it between blocks; any int will do to start.
+    static int floatToPcm16Dithered(float[] src, int srcOffset, short[] dst, int dstOffset,
+            int count, int seed)
+    {
+        final float lsb = 1.0f / 16777216.0f;
+        for (int i = 0; i < count; ++i) {
+            seed = seed * 1664525 + 1013904223;
+            float dither = (seed >>> 8) * lsb;
+            seed = seed * 1664525 + 1013904223;
+            dither -= (seed >>> 8) * lsb;
+            int value = Math.round(src[srcOffset + i] * 32768.0f + dither);
+            dst[dstOffset + i] = (short) (value > Short.MAX_VALUE ? Short.MAX_VALUE :
+                    value < Short.MIN_VALUE ? Short.MIN_VALUE : value);
+        }
+        return seed;
+    }
+
+    static void floatToPcm16Le(float[] src, int srcOffset, byte[] dst, int dstByteOffset,
+            int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            int value = Math.round(src[srcOffset + i] * 32768.0f);
+            value = value > Short.MAX_VALUE ? Short.MAX_VALUE :
+                    value < Short.MIN_VALUE ? Short.MIN_VALUE : value;
+            int j = dstByteOffset + 2 * i;
+            dst[j] = (byte) value;
+            dst[j + 1] = (byte) (value >> 8);
+        }
+    }
+
+    static void floatToPcm24(float[] src, int srcOffset, byte[] dst, int dstByteOffset,
+            int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            int value = Math.round(src[srcOffset + i] * 8388608.0f);
+            value = value > 8388607 ? 8388607 : value < -8388608 ? -8388608 : value;
+            int j = dstByteOffset + 3 * i;
+            dst[j] = (byte) value;
+            dst[j + 1] = (byte) (value >> 8);
+            dst[j + 2] = (byte) (value >> 16);
+        }
+    }
+
+    static void floatToPcm32(float[] src, int srcOffset, int[] dst, int dstOffset, int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            // the conversion to int saturates, and maps NaN to 0
+            dst[dstOffset + i] = (int) ((double) src[srcOffset + i] * 2147483648.0);
+        }
+    }
+
+    static void floatToPcm8(float[] src, int srcOffset, ByteBuffer dst, int dstByteOffset,
+            int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            int value = Math.round(src[srcOffset + i] * 128.0f);
+            value = value > 127 ? 127 : value < -128 ? -128 : value;
+            dst.put(dstByteOffset + i, (byte) (value + 128));
+        }
+    }
+
+    static void floatToPcm16(float[] src, int srcOffset, ByteBuffer dst, int dstByteOffset,
+            int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            int value = Math.round(src[srcOffset + i] * 32768.0f);
+            dst.putShort(dstByteOffset + 2 * i, (short) (value > Short.MAX_VALUE ?
+                    Short.MAX_VALUE : value < Short.MIN_VALUE ? Short.MIN_VALUE : value));
+        }
+    }
+
+    static void floatToPcm24(float[] src, int srcOffset, ByteBuffer dst, int dstByteOffset,
+            int count)
+    {
+        final int low = dst.order() == ByteOrder.LITTLE_ENDIAN ? 0 : 2;
+        final int high = 2 - low;
+        for (int i = 0; i < count; ++i) {
+            int value = Math.round(src[srcOffset + i] * 8388608.0f);
+            value = value > 8388607 ? 8388607 : value < -8388608 ? -8388608 : value;
+            int j = dstByteOffset + 3 * i;
+            dst.put(j + low, (byte) value);
+            dst.put(j + 1, (byte) (value >> 8));
+            dst.put(j + high, (byte) (value >> 16));
+        }
+    }
+
+    static void floatToPcm32(float[] src, int srcOffset, ByteBuffer dst, int dstByteOffset,
+            int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            dst.putInt(dstByteOffset + 4 * i, (int) ((double) src[srcOffset + i] * 2147483648.0));
+        }
+    }
+
+    static void floatToFloat(float[] src, int srcOffset, ByteBuffer dst, int dstByteOffset,
+            int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            dst.putFloat(dstByteOffset + 4 * i, src[srcOffset + i]);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // Integer to integer, without going through float
+
+    static void pcm8ToPcm16(byte[] src, int srcOffset, short[] dst, int dstOffset, int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            dst[dstOffset + i] = (short) (((src[srcOffset + i] & 0xFF) - 128) << 8);
+        }
+    }
+
+    // Truncates; use floatToPcm16Dithered for a clean 16-bit result from higher resolution
+    static void pcm32ToPcm16(int[] src, int srcOffset, short[] dst, int dstOffset, int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            dst[dstOffset + i] = (short) (src[srcOffset + i] >> 16);
+        }
+    }
+
+    static void pcm16ToPcm32(short[] src, int srcOffset, int[] dst, int dstOffset, int count)
+    {
+        for (int i = 0; i < count; ++i) {
+            dst[dstOffset + i] = src[srcOffset + i] << 16;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // Channel layout.  Planar data has one array per channel.
+
+    static void deinterleave(float[] src, int srcOffset, float[][] dst, int dstOffset,
+            int frames)
+    {
+        final int channelCount = dst.length;
+        for (int channel = 0; channel < channelCount; ++channel) {
+            final float[] plane = dst[channel];
+            for (int i = 0; i < frames; ++i) {
+                plane[dstOffset + i] = src[srcOffset + i * channelCount + channel];
+            }
+        }
+    }
+
+    static void interleave(float[][] src, int srcOffset, float[] dst, int dstOffset,
+            int frames)
+    {
+        final int channelCount = src.length;
+        for (int channel = 0; channel < channelCount; ++channel) {
+            final float[] plane = src[channel];
+            for (int i = 0; i < frames; ++i) {
+                dst[dstOffset + i * channelCount + channel] = plane[srcOffset + i];
+            }
+        }
+    }
+
+    static void deinterleave(short[] src, int srcOffset, short[][] dst, int dstOffset,
+            int frames)
+    {
+        final int channelCount = dst.length;
+        for (int channel = 0; channel < channelCount; ++channel) {
+            final short[] plane = dst[channel];
+            for (int i = 0; i < frames; ++i) {
+                plane[dstOffset + i] = src[srcOffset + i * channelCount + channel];
+            }
+        }
+    }
+
+    static void interleave(short[][] src, int srcOffset, short[] dst, int dstOffset,
+            int frames)
+    {
+        final int channelCount = src.length;
+        for (int channel = 0; channel < channelCount; ++channel) {
+            final short[] plane = src[channel];
+            for (int i = 0; i < frames; ++i) {
+                dst[dstOffset + i * channelCount + channel] = plane[srcOffset + i];
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // Mono and stereo.  Down-mixes average the channels, so they cannot clip.
+    // The source and destination may be the same array for a down-mix in place.
+
+    static void monoToStereo(float[] src, int srcOffset, float[] dst, int dstOffset, int frames)
+    {
+        // backwards, so that dst may overlap src at the same offset
+        for (int i = frames - 1; i >= 0; --i) {
+            float sample = src[srcOffset + i];
+            dst[dstOffset + 2 * i] = sample;
+            dst[dstOffset + 2 * i + 1] = sample;
+        }
+    }
+
+    static void stereoToMono(float[] src, int srcOffset, float[] dst, int dstOffset, int frames)
+    {
+        for (int i = 0; i < frames; ++i) {
+            dst[dstOffset + i] = 0.5f * (src[srcOffset + 2 * i] + src[srcOffset + 2 * i + 1]);
+        }
+    }
+
+    static void monoToStereo(short[] src, int srcOffset, short[] dst, int dstOffset, int frames)
+    {
+        for (int i = frames - 1; i >= 0; --i) {
+            short sample = src[srcOffset + i];
+            dst[dstOffset + 2 * i] = sample;
+            dst[dstOffset + 2 * i + 1] = sample;
+        }
+    }
+
+    static void stereoToMono(short[] src, int srcOffset, short[] dst, int dstOffset, int frames)
+    {
+        for (int i = 0; i < frames; ++i) {
+            dst[dstOffset + i] = (short) ((src[srcOffset + 2 * i] + src[srcOffset + 2 * i + 1])
+                    >> 1);
+        }
+    }
+
+}
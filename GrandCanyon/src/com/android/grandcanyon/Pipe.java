@@ -16,25 +16,301 @@
 
 package com.android.grandcanyon;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
 // Non-blocking pipe supports a single writer and single reader.
 // The write side of a pipe permits overruns; flow control is the caller's responsibility.
+// Optional blocking and timed variants wait according to a WaitStrategy.
+// Optional validated reads detect data overwritten by the writer during the copy.
+// Health counters are kept by the reader and can be snapshot from any thread with getStats().
+// How the pipe recovers from overload is selected with setOverrunPolicy(), and for 16-bit PCM
+// the resulting splices can be crossfaded with setSpliceCrossfade().
+// ShortPipe and FloatPipe count in frames of typed samples, on the cursors of a Pipe.
 
 class Pipe {
 
-    private int mFront;
-    private int mRear;
-    private byte mBuffer[];
-    private volatile int mVolatileRear; // written by write(), read by read()
-    private int mMaxBytes;
-    private int mBytesOverrun;
-    private int mOverruns;
+    private final byte mBuffer[];       // null if the pipe is backed by a direct buffer
+    private final ByteBuffer mByteBuffer;
+    private final ByteBuffer mReadView;  // used only by read(), for direct buffers
+    private final ByteBuffer mWriteView; // used only by write(), for direct buffers
+    private final int mMaxBytes;
+    private final WriterState mWriter = new WriterState();
+    private final ReaderState mReader = new ReaderState();
+    private volatile Thread mReadWaiter;  // reader parked in waitToRead(), or null
+    private volatile Thread mWriteWaiter; // writer parked in waitToWrite(), or null
+    private WaitStrategy mWaitStrategy = WaitStrategy.PARK;
+    private int mValidateMode = VALIDATE_OFF;
+    private int mOverrunPolicy = OVERRUN_DROP_OLDEST;
+    private volatile int mTargetFill;   // may be changed while running, see setTargetFill
+    private int mFrameSize = 1;
     public static final int OVERRUN = -2;
 
+    // Overrun recovery policies, see setOverrunPolicy()
+    static final int OVERRUN_DROP_OLDEST = 0; // reader skips the oldest data, down to the target
+    static final int OVERRUN_DROP_NEWEST = 1; // writer drops what does not fit, never overruns
+    static final int OVERRUN_CATCH_UP = 2;    // reader skips a little per read, down to target
+
+    // With OVERRUN_CATCH_UP, each read skips at most 1/2^CATCH_UP_SHIFT of the bytes requested
+    private static final int CATCH_UP_SHIFT = 4;
+
+    // Validated read modes, see setValidateMode()
+    static final int VALIDATE_OFF = 0;     // trust the copy, as in the original design
+    static final int VALIDATE_FLAG = 1;    // return torn data, but count it and flag the read
+    static final int VALIDATE_DISCARD = 2; // drop torn data and report an OVERRUN
+
+    // Up to two contiguous regions of the ring buffer, as returned by obtainRead() and
+    // obtainWrite().  The first region starts at mOffset0 and the second, if any, always
+    // starts at offset 0 after the wrap.  Offsets are relative to array() or byteBuffer().
+    static final class Segments {
+        int mOffset0;
+        int mLength0;
+        int mOffset1;
+        int mLength1;
+    }
+
+    // The cursors are split by owning thread into separately allocated objects, so that each
+    // thread's hot fields are together.  They are not padded out to separate cache lines:
+    // PipeBenchmark showed no benefit from padding on a single core, and no multi-core run has
+    // yet justified its cost.  Pad WriterState and ReaderState if one does.
+    // The writer also caches the reader's last published cursor, and only reloads it when
+    // the cached value does not leave enough free space for the current request.  A stale
+    // front can only under-estimate free space, so this is always safe.  The reader cannot
+    // do the same with the rear, since it must reload it on each read to detect overruns.
+
+    // Owned by the writer thread
+    static final class WriterState {
+        int mRear;
+        volatile int mVolatileRear;        // read by the reader
+        volatile int mVolatileWriteLimit;  // end of the write in progress, see setValidateMode
+        int mCachedFront;                  // last value seen of ReaderState.mVolatileFront
+        SpliceCrossfade mCrossfade;        // for OVERRUN_DROP_NEWEST, or null
+        volatile long mBytesDropped;       // OVERRUN_DROP_NEWEST only, may be read by any thread
+    }
+
+    // Owned by the reader thread.  The statistics are written only by the reader, inside
+    // a seqlock: mStatsSequence is odd while an update is in progress, so that getStats()
+    // can take a consistent snapshot from any thread without blocking the reader.
+    // The per-read counters are accumulated in plain fields and published once per
+    // STATS_BATCH reads, so that most reads make no volatile stores for the statistics.
+    static final class ReaderState {
+        int mFront;
+        volatile int mVolatileFront;       // read by the writer
+        boolean mLastReadTorn;
+        boolean mCatchingUp;
+        SpliceCrossfade mCrossfade;        // or null
+        byte[] mCallerBuffer;              // last buffer passed to read(), for the crossfade
+        ByteBuffer mCallerView;            // native order view of mCallerBuffer
+        volatile int mStatsSequence;
+        volatile long mReads;
+        volatile long mUnderruns;
+        volatile long mOverruns;
+        volatile long mBytesOverrun;
+        volatile long mBytesSkipped;
+        volatile long mTornReads;
+        volatile long mTornBytes;
+        final AtomicLongArray mFillHistogram = new AtomicLongArray(PipeStats.FILL_BUCKETS);
+        // not yet published
+        int mPendingReads;
+        int mPendingUnderruns;
+        final int[] mPendingFill = new int[PipeStats.FILL_BUCKETS];
+        final int[] mDirtyBuckets = new int[STATS_BATCH];  // buckets with mPendingFill != 0
+        int mDirtyCount;
+    }
+
+    // Reads per publication of the read counters and fill histogram, see getStats()
+    private static final int STATS_BATCH = 64;
+
     // maxBytes will be rounded up to a power of 2, and all slots are available. Must be >= 2.
     Pipe(int maxBytes)
+    {
+        this(maxBytes, false /*direct*/);
+    }
+
+    // If direct is true, the ring is a direct ByteBuffer in native byte order,
+    // suitable for AudioRecord.read(ByteBuffer) and AudioTrack.write(ByteBuffer).
+    Pipe(int maxBytes, boolean direct)
     {
         mMaxBytes = roundup(maxBytes);
-        mBuffer = new byte[mMaxBytes];
+        mTargetFill = mMaxBytes - (mMaxBytes >> 4);
+        if (direct) {
+            mBuffer = null;
+            mByteBuffer = ByteBuffer.allocateDirect(mMaxBytes).order(ByteOrder.nativeOrder());
+            mReadView = mByteBuffer.duplicate();
+            mWriteView = mByteBuffer.duplicate();
+        } else {
+            mBuffer = new byte[mMaxBytes];
+            mByteBuffer = ByteBuffer.wrap(mBuffer).order(ByteOrder.nativeOrder());
+            mReadView = null;
+            mWriteView = null;
+        }
+    }
+
+    // Selects how waitToRead(), waitToWrite() and the timed read() and write() wait.
+    // Must be called before the reader and writer threads start.
+    void setWaitStrategy(WaitStrategy waitStrategy)
+    {
+        mWaitStrategy = waitStrategy;
+    }
+
+    // Selects whether read() and commitRead() re-check the writer position after the copy,
+    // seqlock style, to detect data that the writer overwrote while it was being read.
+    // This costs the reader one volatile store and load per read.  The writer always makes one
+    // extra volatile store per write, of mVolatileWriteLimit, whether or not validation is on.
+    // Validation is best-effort: the writer stores the write limit before copying, but the
+    // Java memory model only orders earlier accesses before a volatile store, not later ones,
+    // so the first bytes of the copy may become visible to the reader before the new limit.
+    // That needs a store-store fence, which is not available at this API level.  A read that
+    // the writer laps early in a write can therefore go undetected; one lapped later is caught.
+    // Must be called before the reader thread starts.
+    void setValidateMode(int validateMode)
+    {
+        mValidateMode = validateMode;
+    }
+
+    // Selects how the pipe recovers when the writer gets ahead of the reader:
+    //   OVERRUN_DROP_OLDEST  on overrun, the reader skips the oldest data so that targetFill
+    //                        bytes remain.  The default targetFill keeps 15/16 of the pipe.
+    //   OVERRUN_DROP_NEWEST  the writer drops whatever does not fit, so there are no overruns
+    //                        and the latency never grows.  targetFill is not used.
+    //   OVERRUN_CATCH_UP     whenever the fill level rises 1/16 of the pipe above targetFill,
+    //                        each read skips a small fraction of the bytes requested until the
+    //                        fill level is back at targetFill.  An overrun skips the minimum.
+    //                        With a splice crossfade, a new skip waits for the previous
+    //                        crossfade to finish.  This is for readers that cannot resample;
+    //                        a JitterBuffer reader should use OVERRUN_DROP_OLDEST, as it
+    //                        drains any excess itself by resampling.
+    // targetFill is in bytes, and should be a multiple of the frame size.
+    // Must be called before the reader and writer threads start.
+    void setOverrunPolicy(int overrunPolicy, int targetFill)
+    {
+        mOverrunPolicy = overrunPolicy;
+        setTargetFill(targetFill);
+    }
+
+    // Changes the targetFill of the overrun policy.  May be called from any thread at any time,
+    // e.g. when the delay is changed while running; the reader picks it up on its next read.
+    void setTargetFill(int targetFill)
+    {
+        mTargetFill = Math.max(0, Math.min(targetFill, mMaxBytes));
+    }
+
+    // Enables a crossfade of the given length wherever data is dropped, for interleaved 16-bit
+    // PCM in native byte order with channelCount channels.  Also aligns the amounts dropped to
+    // whole frames.  All transfers must then be a multiple of the frame size.
+    // Must be called before the reader and writer threads start.
+    void setSpliceCrossfade(int frames, int channelCount)
+    {
+        mFrameSize = channelCount * 2;
+        mReader.mCrossfade = frames > 0 ? new SpliceCrossfade(frames, channelCount) : null;
+        mWriter.mCrossfade = frames > 0 ? new SpliceCrossfade(frames, channelCount) : null;
+    }
+
+    // Aligns the amounts dropped on overrun or catch-up to frames of frameSize bytes, as
+    // setSpliceCrossfade() does, for a pipe carrying other data than 16-bit PCM, such as a
+    // FramePipe.  All transfers must then be a multiple of the frame size.
+    // Must be called before the reader and writer threads start.
+    void setFrameSize(int frameSize)
+    {
+        mFrameSize = frameSize;
+    }
+
+    // Returns true if the most recent read() or commitRead() returned torn data.
+    // Always false if validation is off.  Must be called by the reader.
+    boolean wasLastReadTorn()
+    {
+        return mReader.mLastReadTorn;
+    }
+
+    // Takes a consistent snapshot of the pipe counters into stats.
+    // May be called from any thread; it never blocks the reader or writer.
+    // The read count, underruns and fill histogram may lag by up to STATS_BATCH - 1 reads.
+    void getStats(PipeStats stats)
+    {
+        ReaderState reader = mReader;
+        for (;;) {
+            int sequence = reader.mStatsSequence;
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            stats.mReads = reader.mReads;
+            stats.mUnderruns = reader.mUnderruns;
+            stats.mOverruns = reader.mOverruns;
+            stats.mBytesOverrun = reader.mBytesOverrun;
+            stats.mBytesSkipped = reader.mBytesSkipped;
+            stats.mTornReads = reader.mTornReads;
+            stats.mTornBytes = reader.mTornBytes;
+            for (int i = 0; i < PipeStats.FILL_BUCKETS; ++i) {
+                stats.mFillHistogram[i] = reader.mFillHistogram.get(i);
+            }
+            if (reader.mStatsSequence == sequence) {
+                break;
+            }
+        }
+        // Written by the writer, so not covered by the reader's sequence
+        stats.mBytesDroppedByWriter = mWriter.mBytesDropped;
+        stats.mCapacity = mMaxBytes;
+        int fill = mWriter.mVolatileRear - reader.mVolatileFront;
+        stats.mFill = fill < 0 ? 0 : (fill > mMaxBytes ? mMaxBytes : fill);
+    }
+
+    // Called by the reader on each read() and obtainRead() with the bytes available,
+    // or with OVERRUN after an overrun.
+    private void recordRead(int avail)
+    {
+        ReaderState reader = mReader;
+        if (avail == 0) {
+            ++reader.mPendingUnderruns;
+        }
+        if (avail >= 0) {
+            int bucket = PipeStats.fillBucket(avail);
+            if (reader.mPendingFill[bucket]++ == 0) {
+                reader.mDirtyBuckets[reader.mDirtyCount++] = bucket;
+            }
+        }
+        if (++reader.mPendingReads == STATS_BATCH) {
+            publishReads();
+        }
+    }
+
+    // Adds the pending read counters to the published ones
+    private void publishReads()
+    {
+        ReaderState reader = mReader;
+        ++reader.mStatsSequence;
+        reader.mReads += reader.mPendingReads;
+        reader.mUnderruns += reader.mPendingUnderruns;
+        AtomicLongArray histogram = reader.mFillHistogram;
+        for (int i = 0; i < reader.mDirtyCount; ++i) {
+            int bucket = reader.mDirtyBuckets[i];
+            histogram.lazySet(bucket, histogram.get(bucket) + reader.mPendingFill[bucket]);
+            reader.mPendingFill[bucket] = 0;
+        }
+        ++reader.mStatsSequence;
+        reader.mPendingReads = 0;
+        reader.mPendingUnderruns = 0;
+        reader.mDirtyCount = 0;
+    }
+
+    // Returns true if read() crossfades splices, see setSpliceCrossfade()
+    boolean hasSpliceCrossfade()
+    {
+        return mReader.mCrossfade != null;
+    }
+
+    // Returns the backing array, or null if the pipe is backed by a direct buffer.
+    byte[] array()
+    {
+        return mBuffer;
+    }
+
+    // Returns the backing buffer.  Its position and limit are not used by the pipe.
+    ByteBuffer byteBuffer()
+    {
+        return mByteBuffer;
     }
 
     // buffer must != null.
@@ -44,41 +320,238 @@ class Pipe {
     // Returns actual number of bytes copied >= 0.
     int write(byte[] buffer, int offset, int count)
     {
-        int rear = mRear & (mMaxBytes - 1);
+        int dropped = 0;
+        if (mOverrunPolicy == OVERRUN_DROP_NEWEST) {
+            int free = freeToWrite(count);
+            if (count > free) {
+                dropped = count - free;
+                count = free;
+            }
+        }
+        // Announce the extent of this write before copying, for validated reads.
+        // Not a fence: the copy may still become visible first, see setValidateMode().
+        mWriter.mVolatileWriteLimit = mWriter.mRear + Math.min(count, mMaxBytes);
+        int rear = mWriter.mRear & (mMaxBytes - 1);
         int written = mMaxBytes - rear;
         if (written > count) {
             written = count;
         }
-        System.arraycopy(buffer, offset, mBuffer, rear, written);
+        copyIn(buffer, offset, rear, written);
         if (rear + written == mMaxBytes) {
             if ((count -= written) > rear) {
                 count = rear;
             }
             if (count > 0) {
-                System.arraycopy(buffer, offset + written, mBuffer, 0, count);
+                copyIn(buffer, offset + written, 0, count);
                 written += count;
             }
         }
-        mRear += written;
-        mVolatileRear = mRear;
+        commitWrite(written);
+        if (dropped > 0) {
+            dropWrite(dropped);
+        }
         return written;
     }
 
+    // Returns the free space for OVERRUN_DROP_NEWEST, reloading the front only if needed
+    private int freeToWrite(int count)
+    {
+        int free = mMaxBytes - (mWriter.mRear - mWriter.mCachedFront);
+        if (free < count) {
+            free = availableToWrite();
+        }
+        return alignDown(free);
+    }
+
+    private int alignDown(int bytes)
+    {
+        return bytes - bytes % mFrameSize;
+    }
+
+    // Blocking write: waits for free space so that unread data is never overrun.
+    // timeoutNs is the maximum time to wait, or < 0 to wait until all count bytes are written.
+    // Other parameters are the same as for write().
+    // Returns actual number of bytes copied >= 0, which is less than count only on timeout.
+    int write(byte[] buffer, int offset, int count, long timeoutNs) throws InterruptedException
+    {
+        long deadline = timeoutNs >= 0 ? System.nanoTime() + timeoutNs : 0;
+        int total = 0;
+        while (total < count) {
+            long remainingNs = -1;
+            if (timeoutNs >= 0 && (remainingNs = deadline - System.nanoTime()) < 0) {
+                remainingNs = 0;
+            }
+            int avail = waitToWrite(1, remainingNs);
+            if (avail <= 0) {
+                break;
+            }
+            total += write(buffer, offset + total, Math.min(count - total, avail));
+        }
+        return total;
+    }
+
+    // Returns the number of bytes that can be written without overrunning unread data
+    int availableToWrite()
+    {
+        mWriter.mCachedFront = mReader.mVolatileFront;
+        return mMaxBytes - (mWriter.mRear - mWriter.mCachedFront);
+    }
+
+    // Waits until at least count bytes can be written without overrunning unread data.
+    // count is clamped to the pipe size.
+    // timeoutNs is the maximum time to wait, or < 0 to wait forever.
+    // Returns availableToWrite(), which is less than count only on timeout.
+    int waitToWrite(int count, long timeoutNs) throws InterruptedException
+    {
+        if (count > mMaxBytes) {
+            count = mMaxBytes;
+        }
+        long deadline = timeoutNs >= 0 ? System.nanoTime() + timeoutNs : 0;
+        WaitStrategy strategy = mWaitStrategy;
+        try {
+            for (int iteration = 0; ; ++iteration) {
+                int avail = mMaxBytes - (mWriter.mRear - mWriter.mCachedFront);
+                if (avail < count) {
+                    avail = availableToWrite();
+                }
+                if (avail >= count) {
+                    return avail;
+                }
+                long remainingNs = -1;
+                if (timeoutNs >= 0 && (remainingNs = deadline - System.nanoTime()) <= 0) {
+                    return avail;
+                }
+                if (strategy.needsWakeup() && mWriteWaiter == null) {
+                    mWriteWaiter = Thread.currentThread();
+                    // Re-check so that a read() racing with the store above is not missed
+                    continue;
+                }
+                strategy.idle(iteration, remainingNs);
+            }
+        } finally {
+            mWriteWaiter = null;
+        }
+    }
+
     int availableToRead()
     {
-        int rear = mVolatileRear;
-        int avail = rear - mFront;
+        int rear = mWriter.mVolatileRear;
+        int avail = rear - mReader.mFront;
         if (avail > mMaxBytes) {
-            // Discard 1/16 of the most recent data in pipe to avoid another overrun immediately
-            int oldFront = mFront;
-            mFront = rear - mMaxBytes + (mMaxBytes >> 4);
-            mBytesOverrun += mFront - oldFront;
-            ++mOverruns;
+            // Discard the oldest data down to the target, to avoid another overrun immediately.
+            // Catch-up discards only 1/16 of the pipe here, and the rest gradually.
+            int target = mOverrunPolicy == OVERRUN_CATCH_UP ?
+                    mMaxBytes - (mMaxBytes >> 4) : mTargetFill;
+            skipTo(rear - alignDown(target));
             return OVERRUN;
         }
         return avail;
     }
 
+    // For OVERRUN_CATCH_UP, called by the reader with the bytes available and requested.
+    // Drops a little data if the fill level is above target, and returns the new available.
+    private int catchUp(int avail, int count)
+    {
+        ReaderState reader = mReader;
+        int excess = avail - mTargetFill;
+        if (!reader.mCatchingUp && excess > (mMaxBytes >> 4)) {
+            reader.mCatchingUp = true;
+        }
+        if (!reader.mCatchingUp) {
+            return avail;
+        }
+        if (reader.mCrossfade != null && reader.mCrossfade.isActive()) {
+            return avail;
+        }
+        int skip = alignDown(Math.min(excess, Math.max(count >> CATCH_UP_SHIFT, mFrameSize)));
+        if (skip <= 0) {
+            reader.mCatchingUp = false;
+            return avail;
+        }
+        // The skipped data is still intact, so crossfade from it into the data after the skip
+        if (reader.mCrossfade != null) {
+            reader.mCrossfade.start(mByteBuffer, reader.mFront, avail, mMaxBytes - 1);
+        }
+        ++reader.mStatsSequence;
+        reader.mBytesSkipped += skip;
+        ++reader.mStatsSequence;
+        reader.mFront += skip;
+        reader.mVolatileFront = reader.mFront;
+        return avail - skip;
+    }
+
+    // Moves the front forward after an overrun, counting the bytes lost
+    private void skipTo(int front)
+    {
+        ReaderState reader = mReader;
+        ++reader.mStatsSequence;
+        reader.mBytesOverrun += front - reader.mFront;
+        ++reader.mOverruns;
+        ++reader.mStatsSequence;
+        reader.mFront = front;
+        reader.mVolatileFront = front;
+        // What followed the old front has been overwritten, so crossfade from the last frame read
+        if (reader.mCrossfade != null) {
+            reader.mCrossfade.start();
+        }
+    }
+
+    // Called by the reader after copying count bytes starting at the current front.
+    // Returns the number of those bytes that the writer may have overwritten during the copy.
+    private int checkTorn(int count)
+    {
+        // The volatile store orders the copy before the load of the write limit below
+        mReader.mVolatileFront = mReader.mFront;
+        int limit = mWriter.mVolatileWriteLimit;
+        int torn = limit - mMaxBytes - mReader.mFront;
+        if (torn <= 0) {
+            mReader.mLastReadTorn = false;
+            return 0;
+        }
+        if (torn > count) {
+            torn = count;
+        }
+        mReader.mLastReadTorn = true;
+        ++mReader.mStatsSequence;
+        ++mReader.mTornReads;
+        mReader.mTornBytes += torn;
+        ++mReader.mStatsSequence;
+        return torn;
+    }
+
+    // Waits until at least count bytes are available to read, or an overrun is detected.
+    // count is clamped to the pipe size.
+    // timeoutNs is the maximum time to wait, or < 0 to wait forever.
+    // Returns availableToRead(), which is less than count only on timeout.
+    int waitToRead(int count, long timeoutNs) throws InterruptedException
+    {
+        if (count > mMaxBytes) {
+            count = mMaxBytes;
+        }
+        long deadline = timeoutNs >= 0 ? System.nanoTime() + timeoutNs : 0;
+        WaitStrategy strategy = mWaitStrategy;
+        try {
+            for (int iteration = 0; ; ++iteration) {
+                int avail = availableToRead();
+                if (avail < 0 || avail >= count) {
+                    return avail;
+                }
+                long remainingNs = -1;
+                if (timeoutNs >= 0 && (remainingNs = deadline - System.nanoTime()) <= 0) {
+                    return avail;
+                }
+                if (strategy.needsWakeup() && mReadWaiter == null) {
+                    mReadWaiter = Thread.currentThread();
+                    // Re-check so that a write() racing with the store above is not missed
+                    continue;
+                }
+                strategy.idle(iteration, remainingNs);
+            }
+        } finally {
+            mReadWaiter = null;
+        }
+    }
+
     // buffer must != null.
     // offset must be >= 0.
     // count is maximum number of bytes to copy, and must be >= 0.
@@ -87,43 +560,240 @@ class Pipe {
     int read(byte[] buffer, int offset, int count)
     {
         int avail = availableToRead();
+        recordRead(avail);
         if (avail <= 0) {
             return avail;
         }
+        if (mOverrunPolicy == OVERRUN_CATCH_UP) {
+            avail = catchUp(avail, count);
+        }
         // An overrun can occur from here on and be silently ignored,
         // but it will be caught at next read()
         if (count > avail) {
             count = avail;
         }
-        int front = mFront & (mMaxBytes - 1);
+        int front = mReader.mFront & (mMaxBytes - 1);
         int red = mMaxBytes - front;
         if (red > count) {
             red = count;
         }
-        // In particular, an overrun during the System.arraycopy will result in reading corrupt data
-        System.arraycopy(mBuffer, front, buffer, offset, red);
-        // We could re-read the rear pointer here to detect the corruption, but why bother?
+        // In particular, an overrun during the copy will result in reading corrupt data,
+        // which is detected below if validation is enabled
+        copyOut(front, buffer, offset, red);
         if (front + red == mMaxBytes) {
             if ((count -= red) > front) {
                 count = front;
             }
             if (count > 0) {
-                System.arraycopy(mBuffer, 0, buffer, offset + red, count);
+                copyOut(0, buffer, offset + red, count);
                 red += count;
             }
         }
-        mFront += red;
+        if (mValidateMode != VALIDATE_OFF && checkTorn(red) > 0
+                && mValidateMode == VALIDATE_DISCARD) {
+            // Recover as for an overrun, but also skip everything the writer may be overwriting
+            int newFront = mWriter.mVolatileRear - mMaxBytes + (mMaxBytes >> 4);
+            int minFront = mWriter.mVolatileWriteLimit - mMaxBytes;
+            skipTo(newFront - minFront >= 0 ? newFront : minFront);
+            return OVERRUN;
+        }
+        mReader.mFront += red;
+        mReader.mVolatileFront = mReader.mFront;
+        // The crossfade is applied to the caller's copy, as the ring is shared with the writer
+        SpliceCrossfade crossfade = mReader.mCrossfade;
+        if (crossfade != null && red > 0) {
+            if (buffer != mReader.mCallerBuffer) {
+                mReader.mCallerBuffer = buffer;
+                mReader.mCallerView = ByteBuffer.wrap(buffer).order(ByteOrder.nativeOrder());
+            }
+            crossfade.apply(mReader.mCallerView, offset, red, -1);
+            crossfade.remember(mReader.mCallerView, offset + red, -1);
+        }
+        wake(mWriteWaiter);
         return red;
     }
 
+    // Blocking read: waits until count bytes have been read.
+    // timeoutNs is the maximum time to wait, or < 0 to wait forever.
+    // Other parameters are the same as for read().
+    // Returns actual number of bytes copied >= 0, which is less than count only on timeout,
+    // or OVERRUN if an overrun is detected before any bytes are copied.
+    int read(byte[] buffer, int offset, int count, long timeoutNs) throws InterruptedException
+    {
+        long deadline = timeoutNs >= 0 ? System.nanoTime() + timeoutNs : 0;
+        int total = 0;
+        while (total < count) {
+            long remainingNs = -1;
+            if (timeoutNs >= 0 && (remainingNs = deadline - System.nanoTime()) < 0) {
+                remainingNs = 0;
+            }
+            int avail = waitToRead(1, remainingNs);
+            if (avail < 0) {
+                return total > 0 ? total : avail;
+            }
+            if (avail == 0) {
+                break;
+            }
+            total += read(buffer, offset + total, count - total);
+        }
+        return total;
+    }
+
+    // Zero-copy write: returns in segments up to count bytes of the ring, which the caller
+    // fills in place and then passes to commitWrite().  count must be >= 0.
+    // As with write(), the returned space may hold unread data; it is overrun on commit.
+    // With OVERRUN_DROP_NEWEST, only free space is returned, and the caller should report
+    // any data it then discards with dropWrite().
+    // Returns total number of bytes obtained >= 0.
+    int obtainWrite(Segments segments, int count)
+    {
+        if (count > mMaxBytes) {
+            count = mMaxBytes;
+        }
+        if (mOverrunPolicy == OVERRUN_DROP_NEWEST) {
+            count = Math.min(count, freeToWrite(count));
+        }
+        mWriter.mVolatileWriteLimit = mWriter.mRear + count;
+        split(mWriter.mRear & (mMaxBytes - 1), count, segments);
+        return count;
+    }
+
+    // Publishes count bytes filled after obtainWrite().  count must be <= the value obtained.
+    void commitWrite(int count)
+    {
+        // The region is not yet visible to the reader, so the writer may still modify it
+        SpliceCrossfade crossfade = mWriter.mCrossfade;
+        if (crossfade != null && count > 0) {
+            crossfade.apply(mByteBuffer, mWriter.mRear, count, mMaxBytes - 1);
+            crossfade.remember(mByteBuffer, mWriter.mRear + count, mMaxBytes - 1);
+        }
+        mWriter.mRear += count;
+        mWriter.mVolatileRear = mWriter.mRear;
+        mWriter.mVolatileWriteLimit = mWriter.mRear;
+        wake(mReadWaiter);
+    }
+
+    // Records that the writer discarded count bytes that did not fit in the pipe,
+    // so that the next data written is crossfaded and the loss appears in the stats.
+    void dropWrite(int count)
+    {
+        mWriter.mBytesDropped += count;
+        if (mWriter.mCrossfade != null) {
+            mWriter.mCrossfade.start();
+        }
+    }
+
+    // Zero-copy read: returns in segments up to count bytes of the ring, which the caller
+    // drains in place and then passes to commitRead().  count must be >= 0.
+    // The same overrun caveats apply as for read().  The ring is shared with the writer, so
+    // splices are not crossfaded here; a reader that needs the crossfade should use read().
+    // Returns total number of bytes obtained >= 0, or OVERRUN.
+    int obtainRead(Segments segments, int count)
+    {
+        int avail = availableToRead();
+        recordRead(avail);
+        if (avail <= 0) {
+            segments.mLength0 = 0;
+            segments.mLength1 = 0;
+            return avail;
+        }
+        if (mOverrunPolicy == OVERRUN_CATCH_UP) {
+            avail = catchUp(avail, count);
+        }
+        if (count > avail) {
+            count = avail;
+        }
+        split(mReader.mFront & (mMaxBytes - 1), count, segments);
+        return count;
+    }
+
+    // Releases count bytes drained after obtainRead().  count must be <= the value obtained.
+    // The data has already been consumed in place, so VALIDATE_DISCARD only flags torn data.
+    void commitRead(int count)
+    {
+        advanceRead(count);
+        if (mReader.mCrossfade != null && count > 0) {
+            mReader.mCrossfade.stop();
+            mReader.mCrossfade.remember(mByteBuffer, mReader.mFront, mMaxBytes - 1);
+        }
+        wake(mWriteWaiter);
+    }
+
+    // As commitRead(), for a reader that copied the count bytes out of the ring as 16-bit
+    // samples to copy at copyOffset, rather than draining them in place.  Any splice crossfade
+    // is applied to the copy, as read() does, so a ShortPipe reader keeps it.
+    void commitRead(int count, short[] copy, int copyOffset)
+    {
+        advanceRead(count);
+        SpliceCrossfade crossfade = mReader.mCrossfade;
+        if (crossfade != null && count > 0) {
+            crossfade.apply(copy, copyOffset, count >> 1);
+            crossfade.remember(copy, copyOffset + (count >> 1));
+        }
+        wake(mWriteWaiter);
+    }
+
+    private void advanceRead(int count)
+    {
+        if (mValidateMode != VALIDATE_OFF) {
+            checkTorn(count);
+        }
+        mReader.mFront += count;
+        mReader.mVolatileFront = mReader.mFront;
+    }
+
     void flush()
     {
-        mRear = mFront;
-        mVolatileRear = mFront;
+        int front = mReader.mFront;
+        mWriter.mRear = front;
+        mWriter.mVolatileRear = front;
+        mWriter.mVolatileWriteLimit = front;
+        mWriter.mCachedFront = front;
+        mReader.mVolatileFront = front;
+    }
+
+    private static void wake(Thread waiter)
+    {
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    // Describe count bytes starting at ring index as one or two contiguous segments
+    private void split(int index, int count, Segments segments)
+    {
+        int first = mMaxBytes - index;
+        if (first > count) {
+            first = count;
+        }
+        segments.mOffset0 = index;
+        segments.mLength0 = first;
+        segments.mOffset1 = 0;
+        segments.mLength1 = count - first;
+    }
+
+    private void copyIn(byte[] buffer, int offset, int index, int count)
+    {
+        if (mBuffer != null) {
+            System.arraycopy(buffer, offset, mBuffer, index, count);
+        } else {
+            mWriteView.position(index);
+            mWriteView.put(buffer, offset, count);
+        }
+    }
+
+    private void copyOut(int index, byte[] buffer, int offset, int count)
+    {
+        if (mBuffer != null) {
+            System.arraycopy(mBuffer, index, buffer, offset, count);
+        } else {
+            mReadView.position(index);
+            mReadView.get(buffer, offset, count);
+        }
     }
 
     // Round up to the next highest power of 2
-    private static int roundup(int v)
+    static int roundup(int v)
     {
         // Integer.numberOfLeadingZeros() returns 32 for zero input
         if (v == 0) {
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Measures the cost of the Pipe itself on a plain JVM, with a writer and a reader thread
+// that poll instead of waiting, so that the result is dominated by the cursor traffic
+// between the two threads rather than by wakeups.  A thread that finds nothing to do yields,
+// so that the benchmark also completes on a single core, where it measures the per-call
+// cost but not the cache line transfers.  Uses no Android classes.
+//
+// throughput: the writer writes a chunk at a time as fast as space allows, and the reader
+//             drains up to a chunk at a time in place, with obtainRead() and commitRead(),
+//             as WriterRunnable does.  Reports MB/s delivered to the reader, the fraction of
+//             reads that found the pipe empty, the fraction of reads that wrapped around the
+//             end of the ring, and the overruns per second.  Swept over three axes:
+//   chunk    powers of 2 from MIN_CHUNK_BYTES up to maxChunkBytes, which should be the
+//            AudioRecord minimum buffer size of the device of interest, and that size itself.
+//   wrap     a steady stream wraps around the ring once per lap, so the wrap ratio is set by
+//            the ring size: RING_CHUNKS chunks, with the stream offset by half a chunk so that
+//            one transfer per lap is split, or a ring of ALIGNED_RING_CHUNKS chunks with no
+//            offset, where nothing is split if the chunk is a power of 2.  The ring is
+//            rounded up to a power of 2, so the measured fraction is reported.
+//   overrun  every OVERRUN_EVERY chunks, the writer also writes a whole ring regardless of
+//            space, as a capture thread would after the reader stalled, so that the reader
+//            next finds an overrun and recovers with OVERRUN_DROP_OLDEST.  0 for none.
+// latency:    two pipes in a ping-pong, one message of a frame at a time; reports the
+//             round trip in ns, which is two one-way hand-offs.
+// Each measurement is run trials times after one warm-up, and the median trial is reported.
+//
+// Usage: java com.android.grandcanyon.PipeBenchmark [seconds [maxChunkBytes [trials]]]
+// where seconds is the length of each throughput trial.
+
+final class PipeBenchmark {
+
+    static final int MIN_CHUNK_BYTES = 128;
+    static final int[] RING_CHUNKS = {64, 16, 4};
+    static final int ALIGNED_RING_CHUNKS = 64;
+    static final int[] OVERRUN_EVERY = {0, 1000, 100};
+    static final int PIPE_BYTES = 65536;
+    static final int MESSAGE_BYTES = 4;
+    static final int ROUND_TRIPS = 100000;
+
+    // Returns {MB/s, fraction of reads that were empty, fraction of reads that wrapped,
+    // overruns per second}.  ringChunks is the ring size in chunks, offset is true to offset
+    // the stream by half a chunk, and overrunEvery is the chunks between forced overruns, or 0.
+    static double[] throughput(final int chunkBytes, int ringChunks, final boolean offset,
+            final int overrunEvery, long durationNs) throws InterruptedException
+    {
+        final Pipe pipe = new Pipe(chunkBytes * ringChunks);
+        final int ringBytes = Pipe.roundup(chunkBytes * ringChunks);
+        Thread writer = new Thread() {
+            @Override
+            public void run()
+            {
+                byte[] chunk = new byte[ringBytes];
+                if (offset) {
+                    pipe.write(chunk, 0, chunkBytes / 2);
+                }
+                int untilOverrun = overrunEvery;
+                while (!isInterrupted()) {
+                    if (pipe.availableToWrite() < chunkBytes) {
+                        Thread.yield();
+                    } else if (overrunEvery > 0 && --untilOverrun == 0) {
+                        pipe.write(chunk, 0, ringBytes);
+                        untilOverrun = overrunEvery;
+                    } else {
+                        pipe.write(chunk, 0, chunkBytes);
+                    }
+                }
+            }
+        };
+        Pipe.Segments segments = new Pipe.Segments();
+        byte[] ring = pipe.array();
+        byte[] buffer = new byte[chunkBytes];
+        long reads = 0;
+        long empty = 0;
+        long wrapped = 0;
+        long red = 0;
+        writer.start();
+        long startNs = System.nanoTime();
+        long endNs = startNs + durationNs;
+        while ((reads & 1023) != 0 || System.nanoTime() < endNs) {
+            int count = pipe.obtainRead(segments, chunkBytes);
+            if (count > 0) {
+                System.arraycopy(ring, segments.mOffset0, buffer, 0, segments.mLength0);
+                if (segments.mLength1 > 0) {
+                    System.arraycopy(ring, 0, buffer, segments.mLength0, segments.mLength1);
+                    ++wrapped;
+                }
+                pipe.commitRead(count);
+                red += count;
+            } else if (count == 0) {
+                ++empty;
+                Thread.yield();
+            }
+            ++reads;
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        writer.interrupt();
+        writer.join();
+        PipeStats stats = new PipeStats();
+        pipe.getStats(stats);
+        return new double[] {red * 1e3 / elapsedNs, (double) empty / reads,
+                (double) wrapped / reads, stats.mOverruns * 1e9 / elapsedNs};
+    }
+
+    // Returns the median of trials runs of throughput(), after one warm-up, by MB/s
+    static double[] medianThroughput(int chunkBytes, int ringChunks, boolean offset,
+            int overrunEvery, long durationNs, int trials) throws InterruptedException
+    {
+        throughput(chunkBytes, ringChunks, offset, overrunEvery, durationNs);
+        double[][] results = new double[trials][];
+        for (int i = 0; i < trials; ++i) {
+            results[i] = throughput(chunkBytes, ringChunks, offset, overrunEvery, durationNs);
+        }
+        Arrays.sort(results, new Comparator<double[]>() {
+            public int compare(double[] a, double[] b)
+            {
+                return Double.compare(a[0], b[0]);
+            }
+        });
+        return results[trials / 2];
+    }
+
+    // Returns the round trip times in ns, sorted
+    static long[] latency(int roundTrips) throws InterruptedException
+    {
+        final Pipe ping = new Pipe(PIPE_BYTES);
+        final Pipe pong = new Pipe(PIPE_BYTES);
+        final int count = roundTrips;
+        Thread echo = new Thread() {
+            @Override
+            public void run()
+            {
+                byte[] message = new byte[MESSAGE_BYTES];
+                for (int i = 0; i < count; ++i) {
+                    while (ping.read(message, 0, MESSAGE_BYTES) == 0) {
+                        Thread.yield();
+                    }
+                    pong.write(message, 0, MESSAGE_BYTES);
+                }
+            }
+        };
+        echo.start();
+        byte[] message = new byte[MESSAGE_BYTES];
+        long[] times = new long[count];
+        for (int i = 0; i < count; ++i) {
+            long startNs = System.nanoTime();
+            ping.write(message, 0, MESSAGE_BYTES);
+            while (pong.read(message, 0, MESSAGE_BYTES) == 0) {
+                Thread.yield();
+            }
+            times[i] = System.nanoTime() - startNs;
+        }
+        echo.join();
+        Arrays.sort(times);
+        return times;
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 0.2;
+        int maxChunkBytes = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+        int trials = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        long durationNs = (long) (seconds * 1e9);
+
+        System.out.println("chunk B  ring  offset  overrun every    MB/s   empty  wrapped"
+                + "  overruns/s");
+        for (int chunkBytes = MIN_CHUNK_BYTES; ; chunkBytes *= 2) {
+            if (chunkBytes > maxChunkBytes) {
+                if (chunkBytes / 2 == maxChunkBytes) {
+                    break;
+                }
+                chunkBytes = maxChunkBytes;
+            }
+            for (int ring = 0; ring <= RING_CHUNKS.length; ++ring) {
+                boolean offset = ring < RING_CHUNKS.length;
+                int ringChunks = offset ? RING_CHUNKS[ring] : ALIGNED_RING_CHUNKS;
+                for (int overrunEvery : OVERRUN_EVERY) {
+                    double[] result = medianThroughput(chunkBytes, ringChunks, offset,
+                            overrunEvery, durationNs, trials);
+                    System.out.printf("%7d  %4d  %6s  %13d  %6.0f  %5.1f%%  %6.2f%%  %10.1f%n",
+                            chunkBytes, ringChunks, offset ? "1/2" : "0", overrunEvery,
+                            result[0], result[1] * 100.0, result[2] * 100.0, result[3]);
+                }
+            }
+            if (chunkBytes == maxChunkBytes) {
+                break;
+            }
+        }
+
+        latency(ROUND_TRIPS);
+        long[] p50 = new long[trials];
+        long[] p99 = new long[trials];
+        for (int i = 0; i < trials; ++i) {
+            long[] times = latency(ROUND_TRIPS);
+            p50[i] = times[times.length / 2];
+            p99[i] = times[(int) (times.length * 0.99)];
+        }
+        Arrays.sort(p50);
+        Arrays.sort(p99);
+        System.out.printf("round trip p50 %d ns, p99 %d ns%n", p50[trials / 2], p99[trials / 2]);
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// A consistent snapshot of the health counters of a Pipe, filled in by Pipe.getStats().
+// Counters are cumulative since the pipe was created.
+
+class PipeStats {
+
+    // The fill-level histogram counts reads by the bytes they found available, in log-spaced
+    // buckets: one per value below 8, then 8 per power of 2, so that each bucket is at most
+    // 1/8 of its lower bound wide.  A small fill level in a large pipe, e.g. 200 ms of a
+    // 10 s pipe, is then resolved as finely as a large one.
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int FILL_BUCKETS = (31 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    int mCapacity;          // pipe size in bytes
+    int mFill;              // bytes available to read when the snapshot was taken
+    long mReads;            // calls to read() and obtainRead()
+    long mUnderruns;        // reads that found the pipe empty
+    long mOverruns;         // overruns detected by the reader
+    long mBytesOverrun;     // bytes skipped by the reader to recover from overruns
+    long mBytesSkipped;     // bytes skipped by the reader to catch up, see OVERRUN_CATCH_UP
+    long mBytesDroppedByWriter; // bytes that did not fit, see OVERRUN_DROP_NEWEST
+    long mTornReads;        // validated reads that found torn data
+    long mTornBytes;        // bytes found torn, whether flagged or discarded
+    final long[] mFillHistogram = new long[FILL_BUCKETS];
+
+    // Returns the histogram bucket for a fill level of bytes >= 0
+    static int fillBucket(int bytes)
+    {
+        if (bytes < SUB_BUCKETS) {
+            return bytes;
+        }
+        int shift = 31 - Integer.numberOfLeadingZeros(bytes) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + ((bytes >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // Returns the smallest fill level in bytes that falls in bucket, which may be FILL_BUCKETS
+    // for the end of the last bucket
+    static long fillBucketStart(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    // Total bytes lost, whichever side dropped them
+    long getBytesDropped()
+    {
+        return mBytesOverrun + mBytesSkipped + mBytesDroppedByWriter;
+    }
+
+    // Returns the fill level, as a fraction of capacity, that at least the given fraction
+    // of reads were at or below; e.g. fillQuantile(0.99) is an upper bound on the fill level
+    // seen by 99% of reads.  Resolution is 1/8 of the value.  Returns 0 if there were no reads.
+    double fillQuantile(double q)
+    {
+        long total = 0;
+        for (int i = 0; i < FILL_BUCKETS; ++i) {
+            total += mFillHistogram[i];
+        }
+        if (total == 0) {
+            return 0.0;
+        }
+        long target = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < FILL_BUCKETS; ++i) {
+            seen += mFillHistogram[i];
+            if (seen >= target) {
+                // the largest fill level in the bucket
+                return Math.min(1.0, (double) (fillBucketStart(i + 1) - 1) / mCapacity);
+            }
+        }
+        return 1.0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "fill " + (mCapacity > 0 ? (100L * mFill / mCapacity) : 0) + "%"
+                + String.format(" (p50 %.1f%%, p99 %.1f%%)",
+                        100 * fillQuantile(0.5), 100 * fillQuantile(0.99))
+                + ", underruns " + mUnderruns
+                + ", overruns " + mOverruns
+                + ", dropped " + getBytesDropped() + " bytes"
+                + ", torn " + mTornReads;
+    }
+
+}
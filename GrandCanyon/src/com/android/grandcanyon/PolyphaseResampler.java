@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.util.HashMap;
+
+// Streaming sample rate conversion by a fixed rational ratio, with a polyphase FIR filter.
+// The ratio outputRate / inputRate is reduced to L / M.  Conceptually the input is upsampled
+// by L, lowpass filtered, and every Mth sample kept; only the kept samples are computed, each
+// as a dot product of TAPS input frames with one of the L phases of the filter.  The prototype
+// is a Kaiser-windowed sinc with its cutoff just below the lower of the two Nyquist rates, so
+// downsampling is alias free; for downsampling it is longer in proportion, to keep the same
+// transition width.  Tables depend only on the rates, so are computed once and cached for the
+// life of the process.  The delay is about half the filter length, TAPS / 2 input frames
+// when upsampling.
+//
+// process() is called on one thread at a time; it does not allocate.  The number of output
+// frames per call varies by at most one around inputFrames * L / M.
+
+final class PolyphaseResampler {
+
+    // Taps per phase when upsampling, the window shape and the cutoff: together about 88 dB of
+    // image and alias rejection, with the passband flat to 0.82 of the lower Nyquist rate
+    static final int TAPS = 64;
+    private static final double KAISER_BETA = 8.6;
+    private static final double CUTOFF = 0.91;
+
+    private final int mInputRate;
+    private final int mOutputRate;
+    private final int mChannelCount;
+    private final int mMaxInputFrames;
+    private final int mL;
+    private final int mM;
+    private final int mTaps;                // per phase
+    private final float[] mFilter;          // phase p occupies [p * mTaps, (p + 1) * mTaps)
+
+    // Input frames, the last mTaps - 1 of the previous call followed by the current call
+    private final float[] mInput;
+    private final float[] mInputFloats;     // conversion buffers for the PCM16 variant
+    private final float[] mOutputFloats;
+    private int mFrames;                    // frames in mInput
+    private int mIndex;                     // newest input frame of the next output
+    private int mPhase;                     // filter phase of the next output, 0 to L - 1
+
+    private static final HashMap<String, float[]> sFilters = new HashMap<String, float[]>();
+
+    // maxInputFrames is the largest number of frames passed to one process()
+    PolyphaseResampler(int inputRate, int outputRate, int channelCount, int maxInputFrames)
+    {
+        if (inputRate <= 0 || outputRate <= 0 || channelCount <= 0 || maxInputFrames <= 0) {
+            throw new IllegalArgumentException();
+        }
+        int gcd = gcd(inputRate, outputRate);
+        mInputRate = inputRate;
+        mOutputRate = outputRate;
+        mChannelCount = channelCount;
+        mMaxInputFrames = maxInputFrames;
+        mL = outputRate / gcd;
+        mM = inputRate / gcd;
+        mTaps = mL >= mM ? TAPS : (int) (((long) TAPS * mM + mL - 1) / mL);
+        mFilter = filter(mL, mM, mTaps);
+        mInput = new float[(mTaps - 1 + maxInputFrames) * channelCount];
+        mInputFloats = new float[maxInputFrames * channelCount];
+        mOutputFloats = new float[getMaxOutputFrames(maxInputFrames) * channelCount];
+        reset();
+    }
+
+    int getInputRate()
+    {
+        return mInputRate;
+    }
+
+    int getOutputRate()
+    {
+        return mOutputRate;
+    }
+
+    int getChannelCount()
+    {
+        return mChannelCount;
+    }
+
+    // The most frames that one process() of inputFrames can produce
+    int getMaxOutputFrames(int inputFrames)
+    {
+        return (int) (((long) inputFrames * mL + mM - 1) / mM) + 1;
+    }
+
+    // The filter delay in input frames
+    int getDelayFrames()
+    {
+        return mTaps / 2;
+    }
+
+    // Clears the history, as at construction
+    void reset()
+    {
+        mFrames = mTaps - 1;
+        for (int i = 0; i < mFrames * mChannelCount; ++i) {
+            mInput[i] = 0.0f;
+        }
+        mIndex = mTaps - 1;
+        mPhase = 0;
+    }
+
+    // Converts inputFrames frames of interleaved PCM16, and returns the number of frames
+    // written to output, which must have room for getMaxOutputFrames(inputFrames)
+    int process(short[] input, int inputOffset, int inputFrames, short[] output, int outputOffset)
+    {
+        PcmConversions.pcm16ToFloat(input, inputOffset, mInputFloats, 0,
+                inputFrames * mChannelCount);
+        int frames = process(mInputFloats, 0, inputFrames, mOutputFloats, 0);
+        PcmConversions.floatToPcm16(mOutputFloats, 0, output, outputOffset,
+                frames * mChannelCount);
+        return frames;
+    }
+
+    // As above, for interleaved float
+    int process(float[] input, int inputOffset, int inputFrames, float[] output,
+            int outputOffset)
+    {
+        if (inputFrames > mMaxInputFrames) {
+            throw new IllegalArgumentException();
+        }
+        final int channelCount = mChannelCount;
+        final int taps = mTaps;
+        final float[] buffer = mInput;
+        final float[] filter = mFilter;
+        System.arraycopy(input, inputOffset, buffer, mFrames * channelCount,
+                inputFrames * channelCount);
+        final int total = mFrames + inputFrames;
+        int index = mIndex;
+        int phase = mPhase;
+        int out = outputOffset;
+        while (index < total) {
+            // the oldest of the taps input frames for this output, and its filter phase
+            final int first = (index - (taps - 1)) * channelCount;
+            final int coefficients = phase * taps;
+            for (int channel = 0; channel < channelCount; ++channel) {
+                float sum = 0.0f;
+                for (int j = 0, k = first + channel; j < taps; ++j, k += channelCount) {
+                    sum += filter[coefficients + j] * buffer[k];
+                }
+                output[out++] = sum;
+            }
+            phase += mM;
+            index += phase / mL;
+            phase %= mL;
+        }
+        // Keep the history needed by the next output
+        int start = index - (taps - 1);
+        mFrames = total - start;
+        System.arraycopy(buffer, start * channelCount, buffer, 0, mFrames * channelCount);
+        mIndex = index - start;
+        mPhase = phase;
+        return (out - outputOffset) / channelCount;
+    }
+
+    private static int gcd(int a, int b)
+    {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    // Returns the polyphase table for L / M, from the cache if possible.  The coefficients of
+    // each phase are stored oldest input first, so the inner loop runs forwards over both.
+    private static float[] filter(int l, int m, int taps)
+    {
+        String key = l + "/" + m;
+        synchronized (sFilters) {
+            float[] table = sFilters.get(key);
+            if (table != null) {
+                return table;
+            }
+            final int length = l * taps;
+            final double center = (length - 1) / 2.0;
+            // cutoff in cycles per upsampled sample, at the lower of the two Nyquist rates
+            final double cutoff = CUTOFF * 0.5 / Math.max(l, m);
+            final double i0Beta = besselI0(KAISER_BETA);
+            table = new float[length];
+            for (int n = 0; n < length; ++n) {
+                double x = n - center;
+                double sinc = x == 0.0 ? 2.0 * cutoff
+                        : Math.sin(2.0 * Math.PI * cutoff * x) / (Math.PI * x);
+                double r = x / (length / 2.0);
+                double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0.0, 1.0 - r * r)))
+                        / i0Beta;
+                // the gain of l restores the level lost to the zeros inserted when upsampling
+                double h = l * sinc * window;
+                // coefficient n applies to the input frame n / l behind the newest one
+                int phase = n % l;
+                int tap = n / l;
+                table[phase * taps + (taps - 1 - tap)] = (float) h;
+            }
+            sFilters.put(key, table);
+            return table;
+        }
+    }
+
+    // Zeroth order modified Bessel function of the first kind, for the Kaiser window
+    private static double besselI0(double x)
+    {
+        double sum = 1.0;
+        double term = 1.0;
+        double half = x / 2.0;
+        for (int k = 1; k < 50; ++k) {
+            term *= (half / k) * (half / k);
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Runs a list of BlockProcessors over interleaved 16-bit PCM, in place.  The PCM is converted
+// to float once, every stage runs on the same preallocated float buffer, and the result is
+// converted back with TPDF dither, or written as floats to a FloatPipe for a float consumer.
+// The CPU time of each stage, including the two conversions, is measured for every block, so
+// that the effects headroom within one audio period is visible.
+// Stages are added and prepared before use; after that, process() is called on one audio thread
+// and does not allocate, and report() may be called on any one other thread.
+
+final class ProcessingChain {
+
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final int mMaxFrames;
+    private final ArrayList<BlockProcessor> mStages = new ArrayList<BlockProcessor>();
+    private BlockProcessor[] mPrepared;
+
+    private final float[] mFloats;
+    private final short[] mShorts;
+    private ByteBuffer mRing;           // the last ring seen, and a native-order view of it
+    private ShortBuffer mRingShorts;
+    private FloatPipe mOut;             // for the current process(), or null for in place
+    private int mDitherSeed = 1;
+
+    // Timing, indexed by stage: 0 is conversion to float, then the processors in order, then
+    // conversion back.  mTimes holds the total then the maximum ns per block for each stage,
+    // followed by the block count; written by the audio thread only, using lazySet.
+    private String[] mNames;
+    private long[] mBlockNs;
+    private AtomicLongArray mTimes;
+    private long[] mReportedTimes;      // totals at the previous report(), for averages
+
+    ProcessingChain(int sampleRate, int channelCount, int maxFrames)
+    {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mMaxFrames = maxFrames;
+        mFloats = new float[maxFrames * channelCount];
+        mShorts = new short[maxFrames * channelCount];
+    }
+
+    // Appends a stage.  Must be called before prepare().
+    void add(BlockProcessor stage)
+    {
+        mStages.add(stage);
+    }
+
+    // Prepares all stages.  Must be called once, before the audio thread starts.
+    void prepare()
+    {
+        mPrepared = mStages.toArray(new BlockProcessor[mStages.size()]);
+        int count = mPrepared.length + 2;
+        mNames = new String[count];
+        mNames[0] = "to float";
+        for (int i = 0; i < mPrepared.length; ++i) {
+            mPrepared[i].prepare(mSampleRate, mChannelCount, mMaxFrames);
+            mNames[i + 1] = mPrepared[i].getName();
+        }
+        mNames[count - 1] = "to pcm";
+        mBlockNs = new long[count];
+        mTimes = new AtomicLongArray(2 * count + 1);
+        mReportedTimes = new long[2 * count + 1];
+    }
+
+    // Processes the first count bytes of interleaved PCM in the segments of ring, in place,
+    // as one block.  The ring must be in native byte order, and the segment offsets and count
+    // multiples of the frame size.
+    void process(ByteBuffer ring, Pipe.Segments segments, int count)
+    {
+        process(ring, segments, count, null);
+    }
+
+    // As above, but writes the result to out as floats, leaving ring unchanged.  Whatever does
+    // not fit in out is dropped, as for FloatPipe.write().  Times the write as "to pcm".
+    void process(ByteBuffer ring, Pipe.Segments segments, int count, FloatPipe out)
+    {
+        mOut = out;
+        if (ring != mRing) {
+            // Cached, as creating a view allocates
+            ByteBuffer view = ring.duplicate();
+            view.clear();
+            view.order(ring.order());
+            mRingShorts = view.asShortBuffer();
+            mRing = ring;
+        }
+        final long[] blockNs = mBlockNs;
+        for (int i = 0; i < blockNs.length; ++i) {
+            blockNs[i] = 0;
+        }
+        int count0 = Math.min(count, segments.mLength0);
+        processRange(segments.mOffset0, count0);
+        processRange(segments.mOffset1, count - count0);
+        publishTimes();
+    }
+
+    private void processRange(int offset, int count)
+    {
+        final int frameSize = mChannelCount * 2;
+        while (count > 0) {
+            int frames = Math.min(count / frameSize, mMaxFrames);
+            if (frames == 0) {
+                break;
+            }
+            processChunk(offset >> 1, frames);
+            offset += frames * frameSize;
+            count -= frames * frameSize;
+        }
+    }
+
+    private void processChunk(int index, int frames)
+    {
+        final float[] floats = mFloats;
+        final short[] shorts = mShorts;
+        final int samples = frames * mChannelCount;
+        final long[] blockNs = mBlockNs;
+        final BlockProcessor[] stages = mPrepared;
+
+        long start = System.nanoTime();
+        mRingShorts.position(index);
+        mRingShorts.get(shorts, 0, samples);
+        PcmConversions.pcm16ToFloat(shorts, 0, floats, 0, samples);
+        long now = System.nanoTime();
+        blockNs[0] += now - start;
+
+        for (int stage = 0; stage < stages.length; ++stage) {
+            start = now;
+            stages[stage].process(floats, frames);
+            now = System.nanoTime();
+            blockNs[stage + 1] += now - start;
+        }
+
+        start = now;
+        if (mOut != null) {
+            mOut.write(floats, 0, frames);
+        } else {
+            mDitherSeed = PcmConversions.floatToPcm16Dithered(floats, 0, shorts, 0, samples,
+                    mDitherSeed);
+            mRingShorts.position(index);
+            mRingShorts.put(shorts, 0, samples);
+        }
+        now = System.nanoTime();
+        blockNs[stages.length + 1] += now - start;
+    }
+
+    private void publishTimes()
+    {
+        final long[] blockNs = mBlockNs;
+        final AtomicLongArray times = mTimes;
+        final int count = blockNs.length;
+        for (int stage = 0; stage < count; ++stage) {
+            times.lazySet(stage, times.get(stage) + blockNs[stage]);
+            if (blockNs[stage] > times.get(count + stage)) {
+                times.lazySet(count + stage, blockNs[stage]);
+            }
+        }
+        times.lazySet(2 * count, times.get(2 * count) + 1);
+    }
+
+    // Returns one line per stage, with the average CPU time per block since the previous call,
+    // and the maximum since the start, in microseconds.  The total is also shown as a percentage
+    // of periodNs, the time available per block.
+    String report(long periodNs)
+    {
+        final int count = mNames.length;
+        final AtomicLongArray times = mTimes;
+        long blocks = times.get(2 * count) - mReportedTimes[2 * count];
+        if (blocks <= 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        long totalNs = 0;
+        for (int stage = 0; stage < count; ++stage) {
+            long stageNs = times.get(stage) - mReportedTimes[stage];
+            totalNs += stageNs;
+            sb.append(String.format("%-10s avg %6.1f us, max %6.1f us%n", mNames[stage],
+                    stageNs / blocks / 1000.0, times.get(count + stage) / 1000.0));
+        }
+        sb.append(String.format("total %.1f us per block, %.2f%% of the period",
+                totalNs / blocks / 1000.0, 100.0 * totalNs / blocks / periodNs));
+        for (int i = 0; i < mReportedTimes.length; ++i) {
+            mReportedTimes[i] = times.get(i);
+        }
+        return sb.toString();
+    }
+
+}
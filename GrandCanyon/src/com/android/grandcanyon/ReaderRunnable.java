@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// The audio capture side of the echo: moves data from an AudioSource into a Pipe,
+// optionally running a ProcessingChain on it in place in the ring, or into a FloatPipe
+// through a ProcessingChain, which then does the one conversion on the way to a float reader.
+// run() loops on a thread of its own, paced by a blocking hardware source.
+// A simulation instead calls process() whenever its clock advances.
+// The time spent in the source reads, and the time from one process() to the next, are kept
+// in histograms that may be read from any other thread, timed by an AudioClock so that they
+// are in simulated time under a VirtualClock.
+
+class ReaderRunnable implements Runnable
+{
+    private final AudioClock mClock;
+    private final Pipe mPipe;
+    private final FloatPipe mFloatPipe;
+    private final AudioSource mSource;
+    private final int mReadSizeInBytes;
+    private final Pipe.Segments mSegments = new Pipe.Segments();
+    private final byte[] mDiscard;      // also the capture buffer, with a FloatPipe
+    private final ByteBuffer mCapture;  // native order view of mDiscard, with a FloatPipe
+    private final Pipe.Segments mCaptureSegments = new Pipe.Segments();
+    private final ProcessingChain mChain;
+    private LatencyProbe mProbe;
+    private BroadcastPipe mTap;
+    private final LatencyHistogram mReadTimes = new LatencyHistogram("read");
+    private final LatencyHistogram mCycleTimes = new LatencyHistogram("capture cycle");
+    private long mLastCycleNs;
+
+    ReaderRunnable(Pipe pipe, AudioSource source, int readSizeInBytes)
+    {
+        this(AudioClock.SYSTEM, pipe, source, readSizeInBytes, null);
+    }
+
+    // clock times the reads and cycles.  chain must be prepared, and is null for no processing.
+    ReaderRunnable(AudioClock clock, Pipe pipe, AudioSource source, int readSizeInBytes,
+            ProcessingChain chain)
+    {
+        this(clock, pipe, null, source, readSizeInBytes, chain);
+    }
+
+    // As above, but converts the capture to floats into pipe, through chain, which is required
+    ReaderRunnable(AudioClock clock, FloatPipe pipe, AudioSource source, int readSizeInBytes,
+            ProcessingChain chain)
+    {
+        this(clock, null, pipe, source, readSizeInBytes, chain);
+        if (chain == null) {
+            throw new IllegalArgumentException("a FloatPipe requires a processing chain");
+        }
+    }
+
+    private ReaderRunnable(AudioClock clock, Pipe pipe, FloatPipe floatPipe, AudioSource source,
+            int readSizeInBytes, ProcessingChain chain)
+    {
+        mClock = clock;
+        mPipe = pipe;
+        mFloatPipe = floatPipe;
+        mSource = source;
+        mChain = chain;
+        mReadSizeInBytes = readSizeInBytes;
+        mDiscard = new byte[readSizeInBytes];
+        mCapture = floatPipe != null
+                ? ByteBuffer.wrap(mDiscard).order(ByteOrder.nativeOrder()) : null;
+    }
+
+    // Taps the raw capture for latency measurements.  Must be called before the thread starts.
+    void setLatencyProbe(LatencyProbe probe)
+    {
+        mProbe = probe;
+    }
+
+    // Copies the raw capture into tap, for consumers such as WavRecorder that run on other
+    // threads.  The tap never blocks.  Must be called before the thread starts.
+    void setTap(BroadcastPipe tap)
+    {
+        mTap = tap;
+    }
+
+    // Time blocked in each process() reading the source
+    LatencyHistogram getReadTimes()
+    {
+        return mReadTimes;
+    }
+
+    // Time between the starts of consecutive process() calls
+    LatencyHistogram getCycleTimes()
+    {
+        return mCycleTimes;
+    }
+
+    public void run()
+    {
+        while (!Thread.interrupted()) {
+            process();
+        }
+    }
+
+    // Reads at most mReadSizeInBytes from the source into the pipe.
+    // Returns the number of bytes taken from the source, including any dropped.
+    int process()
+    {
+        long startNs = mClock.nanoTime();
+        if (mLastCycleNs != 0) {
+            mCycleTimes.record(startNs - mLastCycleNs);
+        }
+        mLastCycleNs = startNs;
+        if (mFloatPipe != null) {
+            return processFloat(startNs);
+        }
+        // The pipe is array-backed, so the source can fill the ring directly
+        byte[] ring = mPipe.array();
+        int obtained = mPipe.obtainWrite(mSegments, mReadSizeInBytes);
+        int nbBytesRead = mSource.read(ring, mSegments.mOffset0, mSegments.mLength0);
+        if (nbBytesRead == mSegments.mLength0 && mSegments.mLength1 > 0) {
+            int nbBytesRead1 = mSource.read(ring, mSegments.mOffset1, mSegments.mLength1);
+            if (nbBytesRead1 > 0) {
+                nbBytesRead += nbBytesRead1;
+            }
+        }
+        mReadTimes.record(mClock.nanoTime() - startNs);
+        if (nbBytesRead > 0) {
+            if (mProbe != null) {
+                mProbe.capture(mPipe.byteBuffer(), mSegments, nbBytesRead);
+            }
+            if (mTap != null) {
+                int count0 = Math.min(nbBytesRead, mSegments.mLength0);
+                mTap.write(ring, mSegments.mOffset0, count0);
+                mTap.write(ring, mSegments.mOffset1, nbBytesRead - count0);
+            }
+            if (mChain != null) {
+                mChain.process(mPipe.byteBuffer(), mSegments, nbBytesRead);
+            }
+            mPipe.commitWrite(nbBytesRead);
+        } else {
+            nbBytesRead = 0;
+        }
+        if (obtained < mReadSizeInBytes) {
+            // The pipe is full and will not overrun, so read and drop the rest
+            int nbBytesDropped = mSource.read(mDiscard, 0, mReadSizeInBytes - obtained);
+            if (nbBytesDropped > 0) {
+                mPipe.dropWrite(nbBytesDropped);
+                nbBytesRead += nbBytesDropped;
+            }
+        }
+        return nbBytesRead;
+    }
+
+    // The samples change type on the way into the ring, so the source fills mDiscard instead,
+    // and the chain converts from there.  The FloatPipe drops whatever does not fit.
+    private int processFloat(long startNs)
+    {
+        int nbBytesRead = mSource.read(mDiscard, 0, mReadSizeInBytes);
+        mReadTimes.record(mClock.nanoTime() - startNs);
+        if (nbBytesRead <= 0) {
+            return 0;
+        }
+        mCaptureSegments.mLength0 = nbBytesRead;
+        if (mProbe != null) {
+            mProbe.capture(mCapture, mCaptureSegments, nbBytesRead);
+        }
+        if (mTap != null) {
+            mTap.write(mDiscard, 0, nbBytesRead);
+        }
+        mChain.process(mCapture, mCaptureSegments, nbBytesRead, mFloatPipe);
+        return nbBytesRead;
+    }
+}
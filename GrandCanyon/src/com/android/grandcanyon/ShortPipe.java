@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+// FramePipe for interleaved 16-bit PCM, in native byte order in the ring.  It may be laid over
+// the Pipe that a byte writer such as ReaderRunnable fills, so that a short or float reader
+// such as a JitterBuffer takes whole samples from the ring without decoding bytes.  Unlike the
+// other zero-copy reads of the ring, its reads keep the splice crossfade of the Pipe, if set.
+
+class ShortPipe extends FramePipe {
+
+    private final ShortBuffer mReadView;    // used only by the reader
+    private final ShortBuffer mWriteView;   // used only by the writer
+    private short[] mScratch = new short[0];    // for readFloat(), grown as needed
+
+    // maxFrames will be rounded up so that the ring is a power of 2 bytes, see Pipe.
+    ShortPipe(int maxFrames, int channelCount)
+    {
+        this(new Pipe(maxFrames * channelCount * 2), channelCount);
+    }
+
+    // Counts the ring of pipe in frames of channelCount 16-bit samples.  All transfers
+    // through pipe must then be whole frames.  Must be called before the threads start.
+    ShortPipe(Pipe pipe, int channelCount)
+    {
+        super(pipe, channelCount, 2);
+        mReadView = view(pipe);
+        mWriteView = view(pipe);
+    }
+
+    // buffer must != null.
+    // offset and count must be >= 0, and (offset + count) * channelCount <= buffer.length.
+    // With OVERRUN_DROP_NEWEST, whatever does not fit is dropped, as for Pipe.write().
+    // Returns actual number of frames copied >= 0.
+    int write(short[] buffer, int offset, int count)
+    {
+        int written = obtainWrite(count);
+        Pipe.Segments segments = mWriteSegments;
+        offset *= mChannelCount;
+        mWriteView.position(segments.mOffset0);
+        mWriteView.put(buffer, offset, segments.mLength0);
+        if (segments.mLength1 > 0) {
+            mWriteView.position(0);
+            mWriteView.put(buffer, offset + segments.mLength0, segments.mLength1);
+        }
+        return commitWrite(written, count);
+    }
+
+    // buffer must != null.
+    // offset and count must be >= 0, and (offset + count) * channelCount <= buffer.length.
+    // Returns actual number of frames copied >= 0, or OVERRUN.
+    int read(short[] buffer, int offset, int count)
+    {
+        int red = obtainRead(count);
+        if (red <= 0) {
+            return red;
+        }
+        Pipe.Segments segments = mReadSegments;
+        offset *= mChannelCount;
+        mReadView.position(segments.mOffset0);
+        mReadView.get(buffer, offset, segments.mLength0);
+        if (segments.mLength1 > 0) {
+            mReadView.position(0);
+            mReadView.get(buffer, offset + segments.mLength0, segments.mLength1);
+        }
+        mPipe.commitRead(red * mFrameSize, buffer, offset);
+        return red;
+    }
+
+    // Allocates only on a read larger than any before
+    int readFloat(float[] buffer, int offset, int count)
+    {
+        if (mScratch.length < count * mChannelCount) {
+            mScratch = new short[count * mChannelCount];
+        }
+        int red = read(mScratch, 0, count);
+        if (red > 0) {
+            PcmConversions.pcm16ToFloat(mScratch, 0, buffer, offset * mChannelCount,
+                    red * mChannelCount);
+        }
+        return red;
+    }
+
+    // A native-order short view of the whole ring, with a position of its own
+    private static ShortBuffer view(Pipe pipe)
+    {
+        ByteBuffer ring = pipe.byteBuffer().duplicate();
+        ring.clear();
+        return ring.order(pipe.byteBuffer().order()).asShortBuffer();
+    }
+
+}
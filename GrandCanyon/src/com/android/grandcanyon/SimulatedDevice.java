@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.util.Random;
+
+// Timing model shared by SimulatedSource and SimulatedSink.  The device transfers one period
+// of frames at a time, on its own clock.  Its clock runs fast or slow relative to the
+// AudioClock by the drift, each transfer is late by a random amount up to the jitter, and
+// occasionally a transfer stalls for a while, after which the overdue periods happen at once.
+// All randomness comes from the seed, so a run on a VirtualClock is reproducible.
+// Not thread-safe.
+
+abstract class SimulatedDevice {
+
+    // Default size of the device buffer, in periods
+    static final int DEFAULT_BUFFER_PERIODS = 4;
+
+    final AudioClock mClock;
+    final int mSampleRate;
+    final int mChannelCount;
+    final int mFrameSize;
+    final int mPeriodFrames;
+    private final Random mRandom;
+
+    private long mJitterNs;
+    private double mDriftPpm;
+    private double mStallProbability;
+    private long mStallNs;
+
+    private boolean mStarted;
+    private long mStartNs;
+    private long mPeriods;          // periods transferred so far
+    private long mNextDueNs;        // when the next period is transferred
+    private long mStalls;
+
+    SimulatedDevice(AudioClock clock, int sampleRate, int channelCount, int periodFrames,
+            long seed)
+    {
+        mClock = clock;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mFrameSize = channelCount * 2;
+        mPeriodFrames = periodFrames;
+        mRandom = new Random(seed);
+    }
+
+    // Each transfer happens up to jitterNs after its nominal time
+    void setJitter(long jitterNs)
+    {
+        mJitterNs = jitterNs;
+    }
+
+    // Positive drift makes the device clock run fast
+    void setDriftPpm(double driftPpm)
+    {
+        mDriftPpm = driftPpm;
+    }
+
+    // Each transfer stalls for stallNs with the given probability
+    void setStalls(double probability, long stallNs)
+    {
+        mStallProbability = probability;
+        mStallNs = stallNs;
+    }
+
+    long getPeriods()
+    {
+        return mPeriods;
+    }
+
+    long getStalls()
+    {
+        return mStalls;
+    }
+
+    public void start()
+    {
+        mStarted = true;
+        mStartNs = mClock.nanoTime();
+        mPeriods = 0;
+        mNextDueNs = scheduleNext();
+    }
+
+    public void stop()
+    {
+        mStarted = false;
+    }
+
+    // Calls transferPeriod() once for each period that has come due by now
+    final void update()
+    {
+        if (!mStarted) {
+            return;
+        }
+        long now = mClock.nanoTime();
+        while (mNextDueNs <= now) {
+            transferPeriod();
+            ++mPeriods;
+            mNextDueNs = scheduleNext();
+        }
+    }
+
+    // Moves one period between the device buffer and the simulated hardware
+    abstract void transferPeriod();
+
+    private long scheduleNext()
+    {
+        double periodNs = mPeriodFrames * 1e9 / (mSampleRate * (1.0 + mDriftPpm * 1e-6));
+        long due = mStartNs + (long) ((mPeriods + 1) * periodNs);
+        if (mJitterNs > 0) {
+            due += (long) (mRandom.nextDouble() * mJitterNs);
+        }
+        if (mStallProbability > 0.0 && mRandom.nextDouble() < mStallProbability) {
+            due += mStallNs;
+            ++mStalls;
+        }
+        return due;
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.util.Random;
+
+// The acoustic path from a SimulatedSink to a SimulatedSource: what the sink plays, the source
+// captures, after a fixed delay, with a gain and added noise.  The two devices may run at
+// slightly different rates; the path holds at most one second beyond its delay, and runs
+// silent when empty.  Used by the single simulation thread.
+
+final class SimulatedLoopback {
+
+    private final short[] mBuffer;  // interleaved samples in flight
+    private int mFront;
+    private int mCount;
+    private final float mGain;
+    private final float mNoise;
+    private final Random mRandom;
+
+    // delayFrames is the acoustic delay.  noise is the standard deviation of the added noise,
+    // in 16-bit sample units.
+    SimulatedLoopback(int sampleRate, int channelCount, int delayFrames, float gain, float noise,
+            long seed)
+    {
+        mBuffer = new short[(delayFrames + sampleRate) * channelCount];
+        mCount = delayFrames * channelCount;
+        mGain = gain;
+        mNoise = noise;
+        mRandom = new Random(seed);
+    }
+
+    // Called by the sink for each sample played; dropped if the path is full
+    void play(short sample)
+    {
+        if (mCount == mBuffer.length) {
+            return;
+        }
+        mBuffer[(mFront + mCount) % mBuffer.length] = sample;
+        ++mCount;
+    }
+
+    // Called by the source for each sample captured
+    short capture()
+    {
+        float sample = 0.0f;
+        if (mCount > 0) {
+            sample = mBuffer[mFront] * mGain;
+            mFront = (mFront + 1) % mBuffer.length;
+            --mCount;
+        }
+        sample += (float) mRandom.nextGaussian() * mNoise;
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample)));
+    }
+
+}
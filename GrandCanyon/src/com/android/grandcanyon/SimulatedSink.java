@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// An AudioSink that plays out on a simulated clock, see SimulatedDevice.
+// Written data waits in a device buffer; each period the device consumes one period from it,
+// and if there is not enough the period is an underrun.  Optionally counts large jumps
+// between consecutive samples of the first channel, to detect clicks in a known signal,
+// and can play into a SimulatedLoopback.
+
+final class SimulatedSink extends SimulatedDevice implements AudioSink {
+
+    private final byte[] mBuffer;
+    private final ByteBuffer mByteBuffer;
+    private int mFront;             // index of the oldest byte in mBuffer
+    private int mCount;             // bytes in mBuffer
+    private long mUnderruns;
+    private long mFramesPlayed;
+    private int mGlitchThreshold = Integer.MAX_VALUE;
+    private long mGlitches;
+    private short mLastSample;
+    private SimulatedLoopback mLoopback;
+
+    SimulatedSink(AudioClock clock, int sampleRate, int channelCount, int periodFrames, long seed)
+    {
+        super(clock, sampleRate, channelCount, periodFrames, seed);
+        mBuffer = new byte[DEFAULT_BUFFER_PERIODS * periodFrames * mFrameSize];
+        mByteBuffer = ByteBuffer.wrap(mBuffer).order(ByteOrder.nativeOrder());
+    }
+
+    // A change of more than threshold between consecutive samples counts as a glitch
+    void setGlitchThreshold(int threshold)
+    {
+        mGlitchThreshold = threshold;
+    }
+
+    // Everything played, including the silence of underruns, goes into loopback
+    void setLoopback(SimulatedLoopback loopback)
+    {
+        mLoopback = loopback;
+    }
+
+    // Periods that found less than a full period of data
+    long getUnderruns()
+    {
+        return mUnderruns;
+    }
+
+    long getFramesPlayed()
+    {
+        return mFramesPlayed;
+    }
+
+    long getGlitches()
+    {
+        return mGlitches;
+    }
+
+    public int write(byte[] buffer, int offset, int count)
+    {
+        update();
+        count = Math.min(count, mBuffer.length - mCount);
+        int rear = (mFront + mCount) % mBuffer.length;
+        int part1 = Math.min(count, mBuffer.length - rear);
+        System.arraycopy(buffer, offset, mBuffer, rear, part1);
+        System.arraycopy(buffer, offset + part1, mBuffer, 0, count - part1);
+        mCount += count;
+        return count;
+    }
+
+    public int write(short[] buffer, int offset, int count)
+    {
+        update();
+        count = Math.min(count, (mBuffer.length - mCount) / 2);
+        int rear = (mFront + mCount) % mBuffer.length;
+        for (int i = 0; i < count; ++i) {
+            mByteBuffer.putShort(rear, buffer[offset + i]);
+            rear = (rear + 2) % mBuffer.length;
+        }
+        mCount += count * 2;
+        return count;
+    }
+
+    @Override
+    void transferPeriod()
+    {
+        int periodBytes = mPeriodFrames * mFrameSize;
+        int count = periodBytes;
+        if (mCount < periodBytes) {
+            ++mUnderruns;
+            count = mCount - mCount % mFrameSize;
+        }
+        for (int i = 0; i < count; i += mFrameSize) {
+            short sample = mByteBuffer.getShort((mFront + i) % mBuffer.length);
+            if (Math.abs(sample - mLastSample) > mGlitchThreshold) {
+                ++mGlitches;
+            }
+            mLastSample = sample;
+        }
+        if (mLoopback != null) {
+            for (int i = 0; i < count; i += 2) {
+                mLoopback.play(mByteBuffer.getShort((mFront + i) % mBuffer.length));
+            }
+            for (int i = count; i < periodBytes; i += 2) {
+                mLoopback.play((short) 0);
+            }
+        }
+        mFront = (mFront + count) % mBuffer.length;
+        mCount -= count;
+        mFramesPlayed += count / mFrameSize;
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// An AudioSource that captures a sine tone on a simulated clock, see SimulatedDevice.
+// Captured periods wait in a device buffer until read; if it is full the period is lost,
+// as with a real capture overrun.  Instead of the tone, it can capture from a SimulatedLoopback.
+
+final class SimulatedSource extends SimulatedDevice implements AudioSource {
+
+    private final byte[] mBuffer;
+    private final ByteBuffer mByteBuffer;
+    private int mFront;             // index of the oldest byte in mBuffer
+    private int mCount;             // bytes in mBuffer
+    private final double mPhaseIncrement;
+    private final short mAmplitude;
+    private double mPhase;
+    private long mOverruns;
+    private SimulatedLoopback mLoopback;
+
+    SimulatedSource(AudioClock clock, int sampleRate, int channelCount, int periodFrames,
+            long seed)
+    {
+        this(clock, sampleRate, channelCount, periodFrames, seed, 440.0, (short) 8000);
+    }
+
+    SimulatedSource(AudioClock clock, int sampleRate, int channelCount, int periodFrames,
+            long seed, double frequency, short amplitude)
+    {
+        super(clock, sampleRate, channelCount, periodFrames, seed);
+        mBuffer = new byte[DEFAULT_BUFFER_PERIODS * periodFrames * mFrameSize];
+        mByteBuffer = ByteBuffer.wrap(mBuffer).order(ByteOrder.nativeOrder());
+        mPhaseIncrement = 2.0 * Math.PI * frequency / sampleRate;
+        mAmplitude = amplitude;
+    }
+
+    // Captures from loopback instead of generating the tone
+    void setLoopback(SimulatedLoopback loopback)
+    {
+        mLoopback = loopback;
+    }
+
+    // Periods lost because the device buffer was full
+    long getOverruns()
+    {
+        return mOverruns;
+    }
+
+    public int read(byte[] buffer, int offset, int count)
+    {
+        update();
+        if (count > mCount) {
+            count = mCount;
+        }
+        int part1 = mBuffer.length - mFront;
+        if (part1 > count) {
+            part1 = count;
+        }
+        System.arraycopy(mBuffer, mFront, buffer, offset, part1);
+        System.arraycopy(mBuffer, 0, buffer, offset + part1, count - part1);
+        mFront = (mFront + count) % mBuffer.length;
+        mCount -= count;
+        return count;
+    }
+
+    @Override
+    void transferPeriod()
+    {
+        int periodBytes = mPeriodFrames * mFrameSize;
+        if (mCount + periodBytes > mBuffer.length) {
+            ++mOverruns;
+            mPhase += mPeriodFrames * mPhaseIncrement;
+            if (mLoopback != null) {
+                for (int i = 0; i < mPeriodFrames * mChannelCount; ++i) {
+                    mLoopback.capture();
+                }
+            }
+            return;
+        }
+        int rear = (mFront + mCount) % mBuffer.length;
+        for (int i = 0; i < mPeriodFrames; ++i) {
+            short sample = (short) (mAmplitude * Math.sin(mPhase));
+            mPhase += mPhaseIncrement;
+            for (int channel = 0; channel < mChannelCount; ++channel) {
+                if (mLoopback != null) {
+                    sample = mLoopback.capture();
+                }
+                mByteBuffer.putShort(rear, sample);
+                rear = (rear + 2) % mBuffer.length;
+            }
+        }
+        mPhase %= 2.0 * Math.PI;
+        mCount += periodBytes;
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.nio.ByteBuffer;
+
+// Hides the discontinuity where a pipe drops data, for interleaved 16-bit PCM.
+// At a splice, the frames that would have continued the stream are saved if they are still
+// available, and the frames after the splice are crossfaded from them, so that the transition
+// is between two real signals.  If the continuation is lost, e.g. overwritten in an overrun,
+// or is shorter than the crossfade, its last frame (or the last frame delivered) is held for
+// the rest.  The crossfade is only ever applied to data that the calling thread owns: the
+// reader's own copy, or data the writer has not yet committed, never the shared ring.
+// Each instance is used by a single thread.
+
+final class SpliceCrossfade {
+
+    private final int mChannelCount;
+    private final int mFrameSize;
+    private final int mFrames;
+    private final short[] mLast;    // last frame delivered
+    private boolean mHaveLast;
+    private final short[] mFrom;    // the frames to crossfade from, interleaved
+    private int mDone;              // frames of crossfade applied
+    private boolean mActive;
+
+    // frames is the crossfade length, and must be >= 1.
+    SpliceCrossfade(int frames, int channelCount)
+    {
+        mChannelCount = channelCount;
+        mFrameSize = channelCount * 2;
+        mFrames = frames;
+        mLast = new short[channelCount];
+        mFrom = new short[frames * channelCount];
+    }
+
+    int getFrameSize()
+    {
+        return mFrameSize;
+    }
+
+    // True while a crossfade has been started and not yet fully applied
+    boolean isActive()
+    {
+        return mActive;
+    }
+
+    // Called when data is dropped and what would have followed is lost
+    void start()
+    {
+        start(null, 0, 0, 0);
+    }
+
+    // Called when data is dropped, with count bytes of the data that would have followed,
+    // starting at position in buffer.  If mask is not -1, buffer is a ring of mask + 1 bytes
+    // and position wraps.  count need not cover the whole crossfade, and may be 0.
+    void start(ByteBuffer buffer, int position, int count, int mask)
+    {
+        if (!mHaveLast) {
+            return;
+        }
+        int frames = Math.min(count / mFrameSize, mFrames);
+        int i = 0;
+        for (; i < frames * mChannelCount; ++i) {
+            mFrom[i] = buffer.getShort(position & mask);
+            position += 2;
+        }
+        // hold the last frame of the continuation, or the last frame delivered
+        int held = (frames - 1) * mChannelCount;
+        for (int channel = 0; i < mFrom.length; ++i) {
+            mFrom[i] = frames > 0 ? mFrom[held + channel] : mLast[channel];
+            if (++channel == mChannelCount) {
+                channel = 0;
+            }
+        }
+        mDone = 0;
+        mActive = true;
+    }
+
+    // Abandons any crossfade in progress, e.g. when the data after the splice was consumed
+    // without it
+    void stop()
+    {
+        mActive = false;
+    }
+
+    // Applies any crossfade in progress in place, to count bytes of buffer starting at
+    // position, wrapping with mask as for start().  The buffer must be owned by the caller.
+    // position and count must be multiples of the frame size.
+    void apply(ByteBuffer buffer, int position, int count, int mask)
+    {
+        if (!mActive) {
+            return;
+        }
+        final float scale = 1.0f / (mFrames + 1);
+        for (int frames = count / mFrameSize; frames > 0 && mDone < mFrames; --frames) {
+            float gain = (mDone + 1) * scale;
+            int from = mDone * mChannelCount;
+            for (int channel = 0; channel < mChannelCount; ++channel) {
+                int index = position & mask;
+                float x = mFrom[from + channel];
+                buffer.putShort(index, (short) (x + (buffer.getShort(index) - x) * gain));
+                position += 2;
+            }
+            ++mDone;
+        }
+        if (mDone == mFrames) {
+            mActive = false;
+        }
+    }
+
+    // As above, for count samples of interleaved PCM in buffer starting at offset, which must
+    // be multiples of the channel count
+    void apply(short[] buffer, int offset, int count)
+    {
+        if (!mActive) {
+            return;
+        }
+        final float scale = 1.0f / (mFrames + 1);
+        for (int frames = count / mChannelCount; frames > 0 && mDone < mFrames; --frames) {
+            float gain = (mDone + 1) * scale;
+            int from = mDone * mChannelCount;
+            for (int channel = 0; channel < mChannelCount; ++channel) {
+                float x = mFrom[from + channel];
+                buffer[offset] = (short) (x + (buffer[offset] - x) * gain);
+                ++offset;
+            }
+            ++mDone;
+        }
+        if (mDone == mFrames) {
+            mActive = false;
+        }
+    }
+
+    // Remembers the last frame delivered, which ends just before position in buffer,
+    // wrapping with mask as for start()
+    void remember(ByteBuffer buffer, int position, int mask)
+    {
+        position -= mFrameSize;
+        for (int channel = 0; channel < mChannelCount; ++channel) {
+            mLast[channel] = buffer.getShort(position & mask);
+            position += 2;
+        }
+        mHaveLast = true;
+    }
+
+    // As above, for the frame ending just before sample offset in buffer
+    void remember(short[] buffer, int offset)
+    {
+        System.arraycopy(buffer, offset - mChannelCount, mLast, 0, mChannelCount);
+        mHaveLast = true;
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+// An AudioClock that only moves when told to, for deterministic simulation faster than
+// real time.  Not thread-safe; used by a single simulation thread.
+
+final class VirtualClock implements AudioClock {
+
+    private long mNow;
+
+    public long nanoTime()
+    {
+        return mNow;
+    }
+
+    // ns must be >= 0
+    void advance(long ns)
+    {
+        mNow += ns;
+    }
+
+}
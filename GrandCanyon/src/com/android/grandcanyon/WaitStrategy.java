@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.util.concurrent.locks.LockSupport;
+
+// How a blocked Pipe reader or writer waits for the other side to make progress.
+// The choices trade CPU time for wakeup latency:
+//   BUSY_SPIN        lowest latency, burns a core while waiting
+//   SPIN_THEN_YIELD  spins briefly, then yields the CPU between checks
+//   PARK             spins briefly, then parks until the other side unparks it
+//   sleep(ms)        polls at a fixed period, like the original sleep(10) loop
+
+abstract class WaitStrategy {
+
+    // Called repeatedly by the waiting thread while its condition is not yet satisfied.
+    // iteration is the number of previous calls during the current wait.
+    // remainingNs is the time left before the wait times out, or < 0 to wait forever.
+    abstract void idle(int iteration, long remainingNs) throws InterruptedException;
+
+    // Returns true if the other side must unpark the waiting thread after making progress.
+    boolean needsWakeup()
+    {
+        return false;
+    }
+
+    static final WaitStrategy BUSY_SPIN = new WaitStrategy() {
+        @Override
+        void idle(int iteration, long remainingNs) throws InterruptedException
+        {
+            checkInterrupted();
+        }
+    };
+
+    static final WaitStrategy SPIN_THEN_YIELD = new WaitStrategy() {
+        @Override
+        void idle(int iteration, long remainingNs) throws InterruptedException
+        {
+            checkInterrupted();
+            if (iteration >= SPIN_ITERATIONS) {
+                Thread.yield();
+            }
+        }
+    };
+
+    static final WaitStrategy PARK = new WaitStrategy() {
+        @Override
+        void idle(int iteration, long remainingNs) throws InterruptedException
+        {
+            checkInterrupted();
+            if (iteration < SPIN_ITERATIONS) {
+                return;
+            }
+            // Spurious and early wakeups are harmless, the caller re-checks its condition
+            if (remainingNs >= 0) {
+                LockSupport.parkNanos(remainingNs);
+            } else {
+                LockSupport.park();
+            }
+        }
+
+        @Override
+        boolean needsWakeup()
+        {
+            return true;
+        }
+    };
+
+    // Returns a strategy that sleeps for periodMs between checks, limited by the timeout
+    static WaitStrategy sleep(final int periodMs)
+    {
+        return new WaitStrategy() {
+            @Override
+            void idle(int iteration, long remainingNs) throws InterruptedException
+            {
+                long sleepNs = periodMs * 1000000L;
+                if (remainingNs >= 0 && remainingNs < sleepNs) {
+                    sleepNs = remainingNs;
+                }
+                Thread.sleep(sleepNs / 1000000L, (int) (sleepNs % 1000000L));
+            }
+        };
+    }
+
+    // Number of busy iterations before SPIN_THEN_YIELD and PARK give up the CPU
+    private static final int SPIN_ITERATIONS = 100;
+
+    private static void checkInterrupted() throws InterruptedException
+    {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+}
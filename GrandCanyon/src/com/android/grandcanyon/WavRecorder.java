@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Archives a capture stream to a 16-bit PCM WAV file, on a thread of its own.
+// The audio thread only writes into a BroadcastPipe tap, which never blocks it; this thread
+// drains its own reader of the tap into large blocks and writes each through a FileChannel
+// at a block-aligned file offset.  The header is written with zero sizes when the file is
+// opened, and patched once at the end.  If the disk stalls for longer than the tap can hold,
+// the reader is overrun: the lost data is counted and replaced with the same length of
+// silence, so that the file keeps the capture timeline, and the audio is unaffected.
+// The tap carries native byte order PCM, which is little-endian as WAV requires on all
+// supported devices.
+
+final class WavRecorder implements Runnable {
+
+    // Size of each file write.  The data starts at DATA_OFFSET, so all writes are aligned.
+    static final int BLOCK_BYTES = 64 * 1024;
+    private static final int DATA_OFFSET = 4096;
+    // How long to sleep when the tap is empty
+    private static final int POLL_MS = 20;
+
+    private final File mFile;
+    private final BroadcastPipe.Reader mReader;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final byte[] mBlock = new byte[BLOCK_BYTES];
+    private final ByteBuffer mBlockBuffer = ByteBuffer.wrap(mBlock);
+
+    private Thread mThread;
+    private volatile boolean mStopping;
+    private volatile long mBytesWritten;    // may be read by any thread
+    private volatile long mMaxWriteNs;      // longest single write, to show disk stalls
+    private volatile IOException mError;
+    private volatile Runnable mOnStopped;
+
+    // reader must be a new reader of the tap, used only by this recorder
+    WavRecorder(File file, BroadcastPipe.Reader reader, int sampleRate, int channelCount)
+    {
+        mFile = file;
+        mReader = reader;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+    }
+
+    File getFile()
+    {
+        return mFile;
+    }
+
+    // Starts the recorder thread
+    void start()
+    {
+        mThread = new Thread(this);
+        mThread.setName("WavRecorder");
+        mThread.start();
+    }
+
+    // Asks the thread to write out what is left in the tap and complete the file, and returns
+    // at once, as that can take a while if the disk has fallen behind.  Then onStopped, if not
+    // null, is run on the recorder thread.
+    void stop(Runnable onStopped)
+    {
+        mOnStopped = onStopped;
+        mStopping = true;
+    }
+
+    // Waits for the thread to exit after stop()
+    void join() throws InterruptedException
+    {
+        if (mThread != null) {
+            mThread.join();
+        }
+    }
+
+    long getBytesWritten()
+    {
+        return mBytesWritten;
+    }
+
+    // Bytes lost because this recorder fell behind the capture, and written as silence
+    long getBytesDropped()
+    {
+        return mReader.getBytesOverrun();
+    }
+
+    // The error that ended the recording early, or null
+    IOException getError()
+    {
+        return mError;
+    }
+
+    @Override
+    public String toString()
+    {
+        long bytesPerSecond = (long) mSampleRate * mChannelCount * 2;
+        String status = String.format("saving %s: %.1f s, dropped %.1f s in %d gaps, "
+                + "slowest write %d ms", mFile.getName(),
+                (double) getBytesWritten() / bytesPerSecond,
+                (double) getBytesDropped() / bytesPerSecond, mReader.getOverruns(),
+                mMaxWriteNs / 1000000L);
+        IOException error = mError;
+        return error == null ? status : status + ", failed: " + error.getMessage();
+    }
+
+    public void run()
+    {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            channel.write(header(0), 0);
+            long position = DATA_OFFSET;
+            int filled = 0;
+            long silenced = 0;
+            for (;;) {
+                boolean stopping = mStopping;
+                int red = mReader.read(mBlock, filled, BLOCK_BYTES - filled);
+                if (red > 0) {
+                    filled += red;
+                } else if (red < 0) {
+                    // Overrun: pad the gap with silence, then read on from the recovered position
+                    long silence = getBytesDropped() - silenced;
+                    silenced += silence;
+                    while (silence > 0) {
+                        int count = (int) Math.min(silence, BLOCK_BYTES - filled);
+                        Arrays.fill(mBlock, filled, filled + count, (byte) 0);
+                        filled += count;
+                        silence -= count;
+                        if (filled == BLOCK_BYTES) {
+                            position += writeBlock(channel, position, filled);
+                            filled = 0;
+                        }
+                    }
+                    continue;
+                }
+                if (filled == BLOCK_BYTES || (stopping && red <= 0 && filled > 0)) {
+                    position += writeBlock(channel, position, filled);
+                    filled = 0;
+                } else if (red == 0) {
+                    if (stopping) {
+                        break;
+                    }
+                    Thread.sleep(POLL_MS);
+                }
+            }
+            channel.write(header(position - DATA_OFFSET), 0);
+            channel.force(false);
+        } catch (IOException e) {
+            mError = e;
+        } catch (InterruptedException e) {
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                }
+            }
+            Runnable onStopped = mOnStopped;
+            if (onStopped != null) {
+                onStopped.run();
+            }
+        }
+    }
+
+    // Writes count bytes of mBlock at position, and returns count
+    private int writeBlock(FileChannel channel, long position, int count) throws IOException
+    {
+        long start = System.nanoTime();
+        mBlockBuffer.clear();
+        mBlockBuffer.limit(count);
+        while (mBlockBuffer.hasRemaining()) {
+            channel.write(mBlockBuffer, position + mBlockBuffer.position());
+        }
+        long elapsed = System.nanoTime() - start;
+        if (elapsed > mMaxWriteNs) {
+            mMaxWriteNs = elapsed;
+        }
+        mBytesWritten += count;
+        return count;
+    }
+
+    // The RIFF, fmt and data chunk headers for dataBytes of data, with a JUNK chunk between
+    // them that pads the data start to DATA_OFFSET
+    private ByteBuffer header(long dataBytes)
+    {
+        ByteBuffer header = ByteBuffer.allocate(DATA_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+        int blockAlign = mChannelCount * 2;
+        header.put(new byte[] { 'R', 'I', 'F', 'F' });
+        header.putInt((int) Math.min(0xFFFFFFFFL, DATA_OFFSET - 8 + dataBytes));
+        header.put(new byte[] { 'W', 'A', 'V', 'E' });
+        header.put(new byte[] { 'f', 'm', 't', ' ' });
+        header.putInt(16);
+        header.putShort((short) 1);     // PCM
+        header.putShort((short) mChannelCount);
+        header.putInt(mSampleRate);
+        header.putInt(mSampleRate * blockAlign);
+        header.putShort((short) blockAlign);
+        header.putShort((short) 16);
+        header.put(new byte[] { 'J', 'U', 'N', 'K' });
+        header.putInt(DATA_OFFSET - header.position() - 4 - 8);
+        header.position(DATA_OFFSET - 8);
+        header.put(new byte[] { 'd', 'a', 't', 'a' });
+        header.putInt((int) Math.min(0xFFFFFFFFL, dataBytes));
+        header.flip();
+        return header;
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grandcanyon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// The audio playback side of the echo: moves data from a Pipe to an AudioSink, either
+// directly from the ring or resampled through a JitterBuffer.  The ring is shared with the
+// writer, so whenever the data must be modified, by the splice crossfade or a latency probe,
+// it is first copied out of the ring.  After the JitterBuffer,
+// a PolyphaseResampler may convert to a sink rate different from the capture rate.
+// run() loops on a thread of its own, paced by a blocking hardware sink.
+// A simulation instead calls process() whenever its clock advances.
+// The time spent in each sink write, and the time from one write to the next, are kept in
+// histograms that may be read from any other thread, timed by an AudioClock so that they are
+// in simulated time under a VirtualClock.
+
+class WriterRunnable implements Runnable
+{
+    // maximum number of bytes to pass to the sink at a time, when not resampling
+    private static final int CHUNK_BYTES = 128;
+    private final AudioClock mClock;
+    private final Pipe mPipe;
+    private final JitterBuffer mJitterBuffer;
+    private final AudioSink mSink;
+    private final PolyphaseResampler mResampler;
+    // block from the jitter buffer, when it is resampled into mBlock
+    private final short[] mInputBlock;
+    private final Pipe.Segments mSegments = new Pipe.Segments();
+    // block not yet accepted by the sink, in samples
+    private final short[] mBlock;
+    private int mBlockOffset;
+    private int mBlockRemaining;
+    // chunk copied from the pipe but not yet accepted by the sink, when not resampling
+    private final byte[] mChunk = new byte[CHUNK_BYTES];
+    private final ByteBuffer mChunkView = ByteBuffer.wrap(mChunk).order(ByteOrder.nativeOrder());
+    private int mChunkOffset;
+    private int mChunkRemaining;
+    private LatencyProbe mProbe;
+    // a sink write that takes longer than this has blocked, so the sink buffer is full
+    private final long mBlockedWriteNs;
+    private boolean mSinkPrimed;
+    private final LatencyHistogram mWriteTimes = new LatencyHistogram("write");
+    private final LatencyHistogram mCycleTimes = new LatencyHistogram("playback cycle");
+    private long mLastCycleNs;
+
+    // jitterBuffer is null to play the pipe contents unmodified, in which case blockFrames
+    // is unused.  sink is null to discard the data.
+    WriterRunnable(Pipe pipe, JitterBuffer jitterBuffer, AudioSink sink, int blockFrames)
+    {
+        this(AudioClock.SYSTEM, pipe, jitterBuffer, null, sink, blockFrames);
+    }
+
+    // clock times the writes and cycles.  resampler is null to play at the capture rate, and
+    // requires a jitterBuffer.
+    WriterRunnable(AudioClock clock, Pipe pipe, JitterBuffer jitterBuffer,
+            PolyphaseResampler resampler, AudioSink sink, int blockFrames)
+    {
+        if (resampler != null && jitterBuffer == null) {
+            throw new IllegalArgumentException("resampling requires a jitter buffer");
+        }
+        mClock = clock;
+        mPipe = pipe;
+        mJitterBuffer = jitterBuffer;
+        mResampler = resampler;
+        mSink = sink;
+        int channelCount = jitterBuffer != null ? jitterBuffer.getChannelCount() : 0;
+        mInputBlock = resampler != null ? new short[blockFrames * channelCount] : null;
+        mBlock = resampler != null
+                ? new short[resampler.getMaxOutputFrames(blockFrames) * channelCount]
+                : jitterBuffer != null ? new short[blockFrames * channelCount] : null;
+        mBlockedWriteNs = jitterBuffer != null
+                ? blockFrames * 500000000L / jitterBuffer.getSampleRate() : 0;
+        if (jitterBuffer != null && sink == null) {
+            jitterBuffer.setSinkPrimed();
+        }
+    }
+
+    // Injects latency measurement probes.  Must be called before the thread starts.
+    void setLatencyProbe(LatencyProbe probe)
+    {
+        mProbe = probe;
+    }
+
+    // Time blocked in each process() writing to the sink
+    LatencyHistogram getWriteTimes()
+    {
+        return mWriteTimes;
+    }
+
+    // Time between the starts of consecutive sink writes
+    LatencyHistogram getCycleTimes()
+    {
+        return mCycleTimes;
+    }
+
+    public void run()
+    {
+        if (mSink != null) {
+            mSink.start();
+        }
+        try {
+            while (!Thread.interrupted()) {
+                if (process() == 0 && mJitterBuffer == null) {
+                    mPipe.waitToRead(1, -1);
+                }
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+
+    // Passes at most one chunk or block to the sink.
+    // Returns the number of bytes or samples accepted by the sink, or 0 if none.
+    int process() throws InterruptedException
+    {
+        if (mJitterBuffer != null) {
+            return processResampled();
+        }
+        if (mProbe != null || mPipe.hasSpliceCrossfade()) {
+            return processCopied();
+        }
+        int red = mPipe.obtainRead(mSegments, CHUNK_BYTES);
+        if (red <= 0) {
+            // empty, or an overrun that the pipe has already recovered from
+            return 0;
+        }
+        if (mSink != null) {
+            // The pipe is array-backed, so the sink can be fed directly from the ring
+            byte[] ring = mPipe.array();
+            long startNs = startWrite();
+            int written = mSink.write(ring, mSegments.mOffset0, mSegments.mLength0);
+            if (written == mSegments.mLength0 && mSegments.mLength1 > 0) {
+                int written1 = mSink.write(ring, mSegments.mOffset1, mSegments.mLength1);
+                if (written1 > 0) {
+                    written += written1;
+                }
+            }
+            mWriteTimes.record(mClock.nanoTime() - startNs);
+            red = written > 0 ? written : 0;
+        }
+        mPipe.commitRead(red);
+        return red;
+    }
+
+    // As for the zero-copy path, but through mChunk, which the crossfade and probe may modify
+    private int processCopied()
+    {
+        if (mChunkRemaining == 0) {
+            int red = mPipe.read(mChunk, 0, CHUNK_BYTES);
+            if (red <= 0) {
+                return 0;
+            }
+            if (mProbe != null) {
+                mProbe.inject(mChunkView, 0, red);
+            }
+            mChunkOffset = 0;
+            mChunkRemaining = red;
+        }
+        int written = mChunkRemaining;
+        if (mSink != null) {
+            long startNs = startWrite();
+            written = mSink.write(mChunk, mChunkOffset, mChunkRemaining);
+            mWriteTimes.record(mClock.nanoTime() - startNs);
+            if (written <= 0) {
+                return 0;
+            }
+        }
+        mChunkOffset += written;
+        mChunkRemaining -= written;
+        return written;
+    }
+
+    // The jitter buffer paces itself against the sink clock, so a new block is produced
+    // only once the sink has accepted all of the previous one
+    private int processResampled() throws InterruptedException
+    {
+        if (mBlockRemaining == 0) {
+            int channelCount = mJitterBuffer.getChannelCount();
+            short[] block = mResampler != null ? mInputBlock : mBlock;
+            int frames = mJitterBuffer.read(block, 0, block.length / channelCount);
+            if (mProbe != null) {
+                // at the capture rate, as the probe also captures at that rate
+                mProbe.inject(block, 0, frames * channelCount);
+            }
+            if (mResampler != null) {
+                frames = mResampler.process(block, 0, frames, mBlock, 0);
+            }
+            mBlockOffset = 0;
+            mBlockRemaining = frames * channelCount;
+        }
+        int written = mBlockRemaining;
+        if (mSink != null) {
+            long startNs = startWrite();
+            written = mSink.write(mBlock, mBlockOffset, mBlockRemaining);
+            long writeNs = mClock.nanoTime() - startNs;
+            mWriteTimes.record(writeNs);
+            // The sink is primed once it first refuses part of a block, as a simulated sink
+            // does when full, or blocks for a good part of a block period, as a hardware one does
+            if (!mSinkPrimed && (written < mBlockRemaining || writeNs > mBlockedWriteNs)) {
+                mSinkPrimed = true;
+                mJitterBuffer.setSinkPrimed();
+            }
+            if (written <= 0) {
+                return 0;
+            }
+        }
+        mBlockOffset += written;
+        mBlockRemaining -= written;
+        return written;
+    }
+
+    // Records the time since the previous write, and returns the current time
+    private long startWrite()
+    {
+        long nowNs = mClock.nanoTime();
+        if (mLastCycleNs != 0) {
+            mCycleTimes.record(nowNs - mLastCycleNs);
+        }
+        mLastCycleNs = nowNs;
+        return nowNs;
+    }
+}
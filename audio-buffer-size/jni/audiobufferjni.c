@@ -47,6 +47,10 @@ double ts_to_double(const struct timespec *tp) {
 	return tp->tv_sec + 1e-9 * tp->tv_nsec;
 }
 
+int64_t ts_to_ns(const struct timespec *tp) {
+	return tp->tv_sec * (int64_t)1000000000 + tp->tv_nsec;
+}
+
 void double_to_ts(double t, struct timespec *tp) {
 	double intpart;
 	tp->tv_nsec = modf(t, &intpart) * 1e9;
@@ -172,9 +176,18 @@ int global_bufsize;
 int global_sample_rate;
 #define MAX_BUFFER_SIZE 4096
 
-// This is the maximum length of any test
+// This is the maximum length of any test, except one streamed to a ring
 #define TEST_LENGTH 10000
 
+// The timestamp ring, laid out as in TimestampRing.java: a header of the count
+// of records published and the capacity, a power of 2, then one array of
+// capacity nanosecond timestamps for each series.
+#define RING_HEADER_LONGS 2
+#define RING_CALLBACK 0
+#define RING_CB_DONE 1
+#define RING_THREAD 2
+#define RING_RENDER 3
+
 struct renderctx {
 	sem_t wake_sem;
 	sem_t ready_sem;
@@ -187,6 +200,11 @@ struct renderctx {
 	double cbdone_ts[TEST_LENGTH];
 	double thread_ts[TEST_LENGTH];
 	double render_ts[TEST_LENGTH];
+	// if not NULL, timestamps go to this ring instead of the arrays
+	int64_t *ring;
+	int ring_capacity;
+	// set by sljitterStop to end a streamed test early
+	int stop;
 	int delay100us_cb;
 	int delay100us_render;
 	jboolean pulse;
@@ -203,6 +221,13 @@ void init_renderctx(struct renderctx *ctx) {
 	sem_init(&ctx->done_sem, 0, 0);
 	ctx->render_ix = 0;
 	ctx->play_ix = 0;
+	ctx->ring = NULL;
+	ctx->stop = 0;
+}
+
+int64_t *ring_slot(struct renderctx *ctx, int series, int i) {
+	return ctx->ring + RING_HEADER_LONGS + series * ctx->ring_capacity +
+		(i & (ctx->ring_capacity - 1));
 }
 
 // engine interfaces
@@ -261,12 +286,20 @@ void *render_thread(void *data) {
 		sem_wait(&ctx->wake_sem);
 		struct timespec tp;
 		clock_gettime(CLOCK_MONOTONIC, &tp);
-		ctx->thread_ts[i] = ts_to_double(&tp);
+		struct timespec tp2;
 		int delay = ctx->delay100us_render;
 		if (ctx->pulse) delay *= ((i / 50) & 1);
   		spin100us(delay);
-		clock_gettime(CLOCK_MONOTONIC, &tp);
-		ctx->render_ts[i] = ts_to_double(&tp);
+		clock_gettime(CLOCK_MONOTONIC, &tp2);
+		if (ctx->ring != NULL) {
+			*ring_slot(ctx, RING_THREAD, i) = ts_to_ns(&tp);
+			*ring_slot(ctx, RING_RENDER, i) = ts_to_ns(&tp2);
+			// the callback wrote its part of record i before waking us
+			__atomic_store_n(ctx->ring, i + 1, __ATOMIC_RELEASE);
+		} else {
+			ctx->thread_ts[i] = ts_to_double(&tp);
+			ctx->render_ts[i] = ts_to_double(&tp2);
+		}
 		sem_post(&ctx->ready_sem);
 	}
 	LOGI("render thread complete");
@@ -285,6 +318,12 @@ void BqPlayerCallback(SLAndroidSimpleBufferQueueItf queueItf,
 		pthread_setname_np(global_render_thread, "RenderThread");
 	}
 #if 1
+	// Make this the last callback of a streamed test if asked to stop. The
+	// render thread reads the new length after the wake for this callback.
+	if (ctx->ring != NULL && count >= 1 && count < ctx->length - 1 &&
+			__atomic_load_n(&ctx->stop, __ATOMIC_ACQUIRE)) {
+		ctx->length = count + 1;
+	}
   	if (count < ctx->length) {
   		int delay = ctx->delay100us_cb;
 		if (ctx->pulse) delay *= ((count / 50) & 1);
@@ -292,11 +331,23 @@ void BqPlayerCallback(SLAndroidSimpleBufferQueueItf queueItf,
   		struct timespec tp;
 		clock_gettime(CLOCK_MONOTONIC, &tp);
 		double start = ts_to_double(&tp);
-		ctx->callback_ts[count] = start;
+		struct timespec tp2;
 
 		spin100us(delay);
-		clock_gettime(CLOCK_MONOTONIC, &tp);
-		ctx->cbdone_ts[count] = ts_to_double(&tp);
+		clock_gettime(CLOCK_MONOTONIC, &tp2);
+		if (ctx->ring != NULL) {
+			*ring_slot(ctx, RING_CALLBACK, count) = ts_to_ns(&tp);
+			*ring_slot(ctx, RING_CB_DONE, count) = ts_to_ns(&tp2);
+			if (count == 0) {
+				// there is no render for the first callback
+				*ring_slot(ctx, RING_THREAD, 0) = 0;
+				*ring_slot(ctx, RING_RENDER, 0) = 0;
+				__atomic_store_n(ctx->ring, 1, __ATOMIC_RELEASE);
+			}
+		} else {
+			ctx->callback_ts[count] = start;
+			ctx->cbdone_ts[count] = ts_to_double(&tp2);
+		}
 
 		double mark = start * global_sample_rate / global_bufsize - count;
 		// maybe should count startup separately
@@ -411,14 +462,11 @@ void Java_com_levien_audiobuffersize_AudioBufferSize_initAudio(JNIEnv *env, jobj
 	global_bufsize = buf_size;
 }
 
-jstring
-Java_com_levien_audiobuffersize_AudioBufferSize_sljitter(JNIEnv *env,
-    jobject thiz, jdoubleArray arr, jint length, jint delay100us_cb, jint delay100us_render, jboolean pulse) {
-
+// Runs a test on global_renderctx, which must be set up, until its length
+void run_sljitter(jint length, jint delay100us_cb, jint delay100us_render, jboolean pulse) {
   	CreateEngine();
   	SetupPlayer();
 
-	init_renderctx(&global_renderctx);
 	global_renderctx.length = length;
 	global_renderctx.delay100us_cb = delay100us_cb;
 	global_renderctx.delay100us_render = delay100us_render;
@@ -438,6 +486,14 @@ Java_com_levien_audiobuffersize_AudioBufferSize_sljitter(JNIEnv *env,
     void *res;
     pthread_join(global_render_thread, &res);
     ShutdownEngine();
+}
+
+jstring
+Java_com_levien_audiobuffersize_AudioBufferSize_sljitter(JNIEnv *env,
+    jobject thiz, jdoubleArray arr, jint length, jint delay100us_cb, jint delay100us_render, jboolean pulse) {
+
+	init_renderctx(&global_renderctx);
+	run_sljitter(length, delay100us_cb, delay100us_render, pulse);
 	char buf[256];
 	(*env)->SetDoubleArrayRegion(env, arr, 0, length, global_renderctx.callback_ts);
 	(*env)->SetDoubleArrayRegion(env, arr, length, length, global_renderctx.cbdone_ts);
@@ -447,6 +503,37 @@ Java_com_levien_audiobuffersize_AudioBufferSize_sljitter(JNIEnv *env,
     return (*env)->NewStringUTF(env, buf);
 }
 
+// As sljitter, but publishes the timestamps to the ring in the direct buffer
+// as they are taken, for any length, and may be ended early by sljitterStop.
+// The caller resets the ring first.
+jstring
+Java_com_levien_audiobuffersize_AudioBufferSize_sljitterRing(JNIEnv *env,
+    jobject thiz, jobject ring, jint length, jint delay100us_cb, jint delay100us_render, jboolean pulse) {
+
+	init_renderctx(&global_renderctx);
+	global_renderctx.ring = (*env)->GetDirectBufferAddress(env, ring);
+	global_renderctx.ring_capacity = global_renderctx.ring[1];
+	run_sljitter(length, delay100us_cb, delay100us_render, pulse);
+	global_renderctx.ring = NULL;
+	char buf[256];
+	sprintf(buf, "OpenSL callback jitter = %.3fms", global_renderctx.mark_jitter);
+    return (*env)->NewStringUTF(env, buf);
+}
+
+void
+Java_com_levien_audiobuffersize_AudioBufferSize_sljitterStop(JNIEnv *env, jobject thiz) {
+	__atomic_store_n(&global_renderctx.stop, 1, __ATOMIC_RELEASE);
+}
+
+// The count of records published to the ring, read with the ordering that
+// makes them visible to the caller
+jlong
+Java_com_levien_audiobuffersize_AudioBufferSize_ringPublished(JNIEnv *env,
+    jobject thiz, jobject ring) {
+	int64_t *base = (*env)->GetDirectBufferAddress(env, ring);
+	return __atomic_load_n(base, __ATOMIC_ACQUIRE);
+}
+
 /* Adapted from hello jni example */
 jstring
 Java_com_levien_audiobuffersize_AudioBufferSize_test( JNIEnv* env,
@@ -17,6 +17,7 @@ package com.levien.audiobuffersize;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.List;
@@ -51,6 +52,48 @@ public class AudioBufferSize extends Activity
 	int count = 0;
 	final static int SR_TEST_LENGTH = 10000;
 	final static int TEST_LENGTH = 2000;
+	// The buffer size test runs in chunks of this many callbacks, stopping early
+	// once the period detector is confident
+	final static int SR_CHUNK_LENGTH = 2000;
+	// Use a robust slope rather than least squares for the tick rate, so that a
+	// long stall does not tilt it and inflate the jitter. Both are logged. Whole
+	// traces use TheilSen; streamed ones a LagSlopeMedian of DRIFT_LAG and
+	// DRIFT_WINDOW callbacks.
+	final static boolean ROBUST_DRIFT = true;
+	final static int DRIFT_LAG = 512;
+	final static int DRIFT_WINDOW = 512;
+	// A soak test of SOAK_LENGTH callbacks before the experiments, if not 0,
+	// streamed with the drift logged every DRIFT_REPORT_INTERVAL callbacks.
+	// 1000000 is about 1.5 hours at 256 frames and 48kHz.
+	final static int SOAK_LENGTH = 0;
+	final static int DRIFT_REPORT_INTERVAL = 10000;
+	// The load is stepped in 0.1 ms units, up to MAX_STEPS. Rather than sweep
+	// every step, bisect for the breaking point, to within BISECT_TOLERANCE steps.
+	final static int MAX_STEPS = 100;
+	final static boolean BISECT = true;
+	final static int BISECT_TOLERANCE = 2;
+	// A trial is bad if the callback jitter or the render delay exceeds these
+	final static double JITTER_LIMIT = 0.02;
+	final static double RENDER_LIMIT = 0.06;
+	// End each trial as soon as it is certain to fail, with the same outcome as
+	// a trial of TEST_LENGTH callbacks. Only failing trials are shortened: a
+	// passing trial still runs all TEST_LENGTH, and so does the first trial,
+	// which measures the rate. As about half the bisection steps pass, a
+	// bisection takes a little over half as many callbacks, not severalfold
+	// fewer. Needs USE_RING to stop a trial early.
+	final static boolean SEQUENTIAL = true;
+	// Stream the timestamps of the buffer size test and of sequential trials
+	// through a TimestampRing, so that they can stop as soon as they are decided,
+	// instead of running them in chunks
+	final static boolean USE_RING = true;
+	final static int RING_CAPACITY = 16384;
+	final static int RING_POLL_MS = 20;
+	final TimestampRing ring = new TimestampRing(RING_CAPACITY) {
+		@Override
+		long getPublished() {
+			return ringPublished(getBuffer());
+		}
+	};
 	class AudioParams {
 		AudioParams(int sr, int bs) {
 			confident = false;
@@ -72,9 +115,31 @@ public class AudioBufferSize extends Activity
 	}
 
 	class ThreadMeasurement {
+		// maxima
 		double cbDone;
 		double renderStart;
 		double renderEnd;
+		// distributions of the delays
+		final QuantileSketch cbDoneSketch = new QuantileSketch();
+		final QuantileSketch renderStartSketch = new QuantileSketch();
+		final QuantileSketch renderEndSketch = new QuantileSketch();
+		// Adds the delays from one callback, in seconds
+		void add(double cbDoneDelay, double renderStartDelay, double renderEndDelay) {
+			cbDoneSketch.add(cbDoneDelay);
+			renderStartSketch.add(renderStartDelay);
+			renderEndSketch.add(renderEndDelay);
+			cbDone = Math.max(cbDone, cbDoneDelay);
+			renderStart = Math.max(renderStart, renderStartDelay);
+			renderEnd = Math.max(renderEnd, renderEndDelay);
+		}
+		void merge(ThreadMeasurement other) {
+			cbDoneSketch.merge(other.cbDoneSketch);
+			renderStartSketch.merge(other.renderStartSketch);
+			renderEndSketch.merge(other.renderEndSketch);
+			cbDone = cbDoneSketch.getMax();
+			renderStart = renderStartSketch.getMax();
+			renderEnd = renderEndSketch.getMax();
+		}
 		public String toString() {
 			NumberFormat f = NumberFormat.getInstance();
 			f.setMinimumFractionDigits(3);
@@ -83,12 +148,24 @@ public class AudioBufferSize extends Activity
 					", renderStart=" + f.format(renderStart * 1000) +
 					", renderEnd=" + f.format(renderEnd * 1000);
 		}
+		String quantiles() {
+			return "cbDone " + cbDoneSketch + "\n" +
+					"renderStart " + renderStartSketch + "\n" +
+					"renderEnd " + renderEndSketch;
+		}
 	}
 	
 	public class TestThread implements Runnable {
+		double ts[] = new double[TEST_LENGTH * 4];
+		double rate = 0.0;
+		AudioParams newParams;
+		ThreadMeasurement total;
+		NumberFormat f = NumberFormat.getInstance();
 
 		@Override
 		public void run() {
+			f.setMinimumFractionDigits(1);
+			f.setMaximumFractionDigits(1);
 	        logUI(Build.MANUFACTURER + " " + Build.MODEL + " " + Build.VERSION.RELEASE + " " + Build.ID + " (api " + Build.VERSION.SDK_INT + ")");
 			logUI(cpuBound());
 			logUI("audio tests based on " + TEST_LENGTH + " samples");
@@ -97,43 +174,151 @@ public class AudioBufferSize extends Activity
 	            getJbMr1Params(params);
 	        }
 			initAudio(params.sampleRate, 64);
-			double ts[] = new double[SR_TEST_LENGTH * 4];
-			sljitter(ts, SR_TEST_LENGTH, 0, 0, false);
-			AudioParams newParams = analyzeBufferSize(params, ts);
+			newParams = measureBufferSize(params);
 			logUI("detected params: " + newParams);
 			updateAudioParams(params, newParams);
-			ts = new double[TEST_LENGTH * 4];
 	        initAudio(params.sampleRate, params.bufferSize);
-	        double rate = 0.0;
+	        if (USE_RING && SOAK_LENGTH > 0) {
+	        	soak(SOAK_LENGTH);
+	        }
 	        for (int exp = 0; exp < 4; exp++) {
 	        	boolean pulsed = (exp & 1) != 0;
 	        	boolean runInThread = (exp & 2) != 0;
 	        	logUI("experiment: " + (pulsed ? "pulsed" : "not pulsed") +
 	        			(runInThread ? " in thread" : ""));
-	        	int badCount = 0;
-		        for (int i = 0; i < 100; i += 1) {
-		    		NumberFormat f = NumberFormat.getInstance();
-		    		f.setMinimumFractionDigits(1);
-		    		f.setMaximumFractionDigits(1);
-					logUI(f.format(i*.1) + ": " + sljitter(ts, TEST_LENGTH,
-							runInThread ? 0 : i,
-							runInThread ? i : 0, pulsed));
-					JitterMeasurement jm = analyzeDrift(ts, rate);
-					if (rate == 0) rate = jm.rate;
-					if (i == 0 && exp == 0) {
-						reportDrift(newParams, jm);
-					}
-					ThreadMeasurement tm = analyzeJitter(ts);
-					logUI(tm.toString());
-					if (jm.jitter > 0.02 || tm.renderEnd > 0.06) badCount++;
-					else badCount = 0;
-					if (badCount >= 2) break;
-				}
+	        	total = new ThreadMeasurement();
+	        	int breakingPoint = BISECT ? bisect(pulsed, runInThread) :
+	        			sweep(pulsed, runInThread);
+	        	if (breakingPoint < MAX_STEPS) {
+	        		logUI("breaking point: " + f.format(breakingPoint * .1) + " ms");
+	        	} else {
+	        		logUI("no breaking point up to " + f.format(MAX_STEPS * .1) + " ms");
+	        	}
+		        logUI("experiment delays, all steps:");
+		        logUI(total.quantiles());
 		        logUI("");
 	        }
 	        postResults("http://audiolatencytest.appspot.com/sign");
 		}
+
+		// Steps the load up until two bad results in a row, and returns the first
+		// of them, or MAX_STEPS if there are none.
+		int sweep(boolean pulsed, boolean runInThread) {
+			int badCount = 0;
+			for (int i = 0; i < MAX_STEPS; i++) {
+				if (trial(i, pulsed, runInThread)) badCount++;
+				else badCount = 0;
+				if (badCount >= 2) return i - 1;
+			}
+			return MAX_STEPS;
+		}
+
+		// Finds the same breaking point as sweep in O(log MAX_STEPS) steps, assuming
+		// the results get worse with the load: a step is bad if two trials at it
+		// are both bad, as the sweep needs two in a row. The result is within
+		// BISECT_TOLERANCE steps above the last good step found.
+		int bisect(boolean pulsed, boolean runInThread) {
+			if (isBad(0, pulsed, runInThread)) return 0;
+			int good = 0;
+			int bad = MAX_STEPS;
+			while (bad - good > BISECT_TOLERANCE) {
+				int mid = (good + bad) / 2;
+				if (isBad(mid, pulsed, runInThread)) bad = mid;
+				else good = mid;
+			}
+			return bad;
+		}
+
+		boolean isBad(int i, boolean pulsed, boolean runInThread) {
+			return trial(i, pulsed, runInThread) && trial(i, pulsed, runInThread);
+		}
+
+		// Runs and logs one trial with a load of i steps, and returns true if it
+		// was bad
+		boolean trial(int i, boolean pulsed, boolean runInThread) {
+			// the first trial measures the rate that the sequential test needs
+			if (SEQUENTIAL && rate != 0) return sequentialTrial(i, pulsed, runInThread);
+			logUI(f.format(i * .1) + ": " + sljitter(ts, TEST_LENGTH,
+					runInThread ? 0 : i,
+					runInThread ? i : 0, pulsed));
+			JitterMeasurement jm = analyzeDrift(ts, rate);
+			if (rate == 0) {
+				rate = jm.rate;
+				reportDrift(newParams, jm);
+			}
+			ThreadMeasurement tm = analyzeJitter(ts);
+			logUI(tm.toString());
+			logUI(tm.quantiles());
+			total.merge(tm);
+			return jm.jitter > JITTER_LIMIT || tm.renderEnd > RENDER_LIMIT;
+		}
+
+		// As trial, but ends as soon as a SequentialTrialEvaluator decides
+		boolean sequentialTrial(int i, boolean pulsed, boolean runInThread) {
+			final int startupSkip = 100;
+			SequentialTrialEvaluator evaluator = new SequentialTrialEvaluator(rate,
+					JITTER_LIMIT, RENDER_LIMIT, TEST_LENGTH - startupSkip, startupSkip);
+			ThreadMeasurement tm = new ThreadMeasurement();
+			String result = "";
+			if (USE_RING) {
+				TrialFeed feed = new TrialFeed(evaluator, tm, startupSkip);
+				result = streamJitter(TEST_LENGTH, runInThread ? 0 : i, runInThread ? i : 0,
+						pulsed, feed);
+				if (feed.lost) logUI("trial lost timestamps, running it again unstreamed");
+			}
+			// without the ring, or again if the stream lost timestamps, as one run
+			// of the whole length, since the jitter is the spread over a single run
+			if (evaluator.getDecision() == SequentialTrialEvaluator.UNDECIDED) {
+				evaluator = new SequentialTrialEvaluator(rate, JITTER_LIMIT, RENDER_LIMIT,
+						TEST_LENGTH - startupSkip, startupSkip);
+				result = sljitter(ts, TEST_LENGTH,
+						runInThread ? 0 : i,
+						runInThread ? i : 0, pulsed);
+				for (int j = 0; j < TEST_LENGTH; j++) {
+					evaluator.add(ts[j], ts[3 * TEST_LENGTH + j]);
+				}
+				tm = analyzeJitter(ts);
+			}
+			logUI(f.format(i * .1) + ": " + result);
+			logUI(evaluator.toString());
+			logUI(tm.quantiles());
+			total.merge(tm);
+			return evaluator.getDecision() == SequentialTrialEvaluator.FAIL;
+		}
 		
+		// Passes streamed timestamps to a trial's evaluator and measurement, and
+		// stops the trial if any are lost, as the rest would not continue the run
+		class TrialFeed implements TimestampRing.Consumer {
+			final SequentialTrialEvaluator evaluator;
+			final ThreadMeasurement tm;
+			final int startupSkip;
+			long base;
+			long next;
+			boolean lost;
+
+			TrialFeed(SequentialTrialEvaluator evaluator, ThreadMeasurement tm, int startupSkip) {
+				this.evaluator = evaluator;
+				this.tm = tm;
+				this.startupSkip = startupSkip;
+			}
+
+			public boolean record(long index, long callbackNs, long cbDoneNs, long threadNs,
+					long renderNs) {
+				if (lost || index != next) {
+					lost = true;
+					return true;
+				}
+				if (index == 0) base = callbackNs;
+				next = index + 1;
+				if (index >= startupSkip) {
+					tm.add((cbDoneNs - callbackNs) * 1e-9, (threadNs - callbackNs) * 1e-9,
+							(renderNs - callbackNs) * 1e-9);
+				}
+				return evaluator.add((callbackNs - base) * 1e-9, (renderNs - base) * 1e-9) !=
+						SequentialTrialEvaluator.UNDECIDED;
+			}
+		}
+
 		void updateAudioParams(AudioParams dst, AudioParams src) {
 			if (!dst.confident) {
 				dst.sampleRate = src.sampleRate;
@@ -141,41 +326,6 @@ public class AudioBufferSize extends Activity
 			}
 		}
 		
-		JitterMeasurement analyzeDrift(double[] arr, double forceRate) {
-			final int startupSkip = 100;
-			int n = arr.length / 4;
-			// Do linear regression to find timing drift
-			double xys = 0, xs = 0, ys = 0, x2s = 0;
-			int count = n - startupSkip;
-			for (int i = startupSkip; i < n; i++) {
-				double x = i;
-				double y = arr[i];
-				xys += x * y;
-				xs += x;
-				ys += y;
-				x2s += x * x;
-			}
-			double beta = (count * xys - xs * ys) / (count * x2s - xs * xs);
-			double jitRate = forceRate == 0 ? beta : forceRate;
-			//double alpha = (ys - beta * xs) / count;
-			double minJit = 0;
-			double maxJit = 0;
-			for (int i = startupSkip; i < n; i++) {
-				double err = jitRate * i - arr[i];
-				if (i == startupSkip || err < minJit) minJit = err;
-				if (i == startupSkip || err > maxJit) maxJit = err;
-			}
-			JitterMeasurement jm = new JitterMeasurement();
-			jm.rate = beta;
-			jm.jitter = maxJit - minJit;
-			NumberFormat f = NumberFormat.getInstance();
-			f.setMinimumFractionDigits(3);
-			f.setMaximumFractionDigits(3);
-			logUI("ms per tick = " + f.format(jm.rate * 1000) +
-					"; jitter (lr) = " + f.format(jm.jitter * 1000));
-			return jm;
-		}
-
 		void reportDrift(AudioParams params, JitterMeasurement jm) {
 			double actualSr = params.bufferSize / jm.rate;
 			logUI("Actual sample rate = " + actualSr);
@@ -199,14 +349,19 @@ public class AudioBufferSize extends Activity
 			for (int i = 0; i < sampleRates.length; i++) {
 				params.sampleRate = sampleRates[i];
 				initAudio(params.sampleRate, 64);
-				double ts[] = new double[SR_TEST_LENGTH * 4];
-				sljitter(ts, SR_TEST_LENGTH, 0, 0, false);
-				AudioParams newParams = analyzeBufferSize(params, ts);
+				AudioParams newParams = measureBufferSize(params);
 				logUI(newParams.toString());
 				initAudio(newParams.sampleRate, newParams.bufferSize);
-				ts = new double[TEST_LENGTH * 4];
-				sljitter(ts, TEST_LENGTH, 0, 0, false);
-				JitterMeasurement jm = analyzeDrift(ts, 0);
+				JitterMeasurement jm;
+				if (USE_RING) {
+					DriftFeed feed = new DriftFeed(100, false);
+					streamJitter(TEST_LENGTH, 0, 0, false, feed);
+					jm = feed.analyze(0);
+				} else {
+					double ts[] = new double[TEST_LENGTH * 4];
+					sljitter(ts, TEST_LENGTH, 0, 0, false);
+					jm = analyzeDrift(ts, 0);
+				}
 				if (i == 0 || jm.jitter < bestJitter) {
 					bestJitter = jm.jitter;
 					bestSr = newParams.sampleRate;
@@ -285,38 +440,162 @@ public class AudioBufferSize extends Activity
 	
 	ThreadMeasurement analyzeJitter(double[] arr) {
 		int n = arr.length / 4;
-		double maxCbDoneDelay = 0;
-		double maxThreadDelay = 0;
-		double maxRenderDelay = 0;
+		ThreadMeasurement tm = new ThreadMeasurement();
 		for (int i = 100; i < n; i++) {
 			double callback_ts = arr[i - 0];
 			double cbdone_ts = arr[n + i];
 			double thread_ts = arr[2 * n + i];
 			double render_ts = arr[3 * n + i];
-			maxCbDoneDelay = Math.max(maxCbDoneDelay, cbdone_ts - callback_ts);
-			maxThreadDelay = Math.max(maxThreadDelay, thread_ts - callback_ts);
-			maxRenderDelay = Math.max(maxRenderDelay, render_ts - callback_ts);
+			tm.add(cbdone_ts - callback_ts, thread_ts - callback_ts,
+					render_ts - callback_ts);
 		}
-		NumberFormat f = NumberFormat.getInstance();
-		f.setMinimumFractionDigits(3);
-		f.setMaximumFractionDigits(3);
-		ThreadMeasurement tm = new ThreadMeasurement();
-		tm.cbDone = maxCbDoneDelay;
-		tm.renderStart = maxThreadDelay;
-		tm.renderEnd = maxRenderDelay;
 		return tm;
 	}
 
-	AudioParams analyzeBufferSize(AudioParams params, double[] arr) {
+	// Runs 64 frame callbacks until the period detector is confident of the
+	// hardware period, or for SR_TEST_LENGTH callbacks at most. initAudio must
+	// have been called with a buffer size of 64.
+	AudioParams measureBufferSize(AudioParams params) {
 		final int startupSkip = 100;
-		int n = arr.length / 4;
-		int count = 0;
-		for (int i = startupSkip; i < n; i++) {
-			double delta = arr[i] - arr[i - 1];
-			if (delta > 0.001) count++;
+		final PeriodDetector detector = new PeriodDetector(params.sampleRate, 64, startupSkip);
+		int total = 0;
+		if (USE_RING) {
+			class Feed implements TimestampRing.Consumer {
+				long base;
+				long next;
+				int count;
+				public boolean record(long index, long callbackNs, long cbDoneNs,
+						long threadNs, long renderNs) {
+					if (index != next) {
+						// timestamps were lost, so the rest is a new run
+						detector.startRun();
+					}
+					if (index == 0 || index != next) base = callbackNs;
+					next = index + 1;
+					detector.add((callbackNs - base) * 1e-9);
+					count++;
+					// the confidence takes a pass over the histogram
+					return (count & 63) == 0 && detector.isConfident();
+				}
+			}
+			Feed feed = new Feed();
+			streamJitter(SR_TEST_LENGTH, 0, 0, false, feed);
+			total = feed.count;
+		} else {
+			double ts[] = new double[SR_CHUNK_LENGTH * 4];
+			while (total < SR_TEST_LENGTH && !detector.isConfident()) {
+				sljitter(ts, SR_CHUNK_LENGTH, 0, 0, false);
+				detector.startRun();
+				for (int i = 0; i < SR_CHUNK_LENGTH; i++) {
+					detector.add(ts[i]);
+				}
+				total += SR_CHUNK_LENGTH;
+			}
+		}
+		logUI("buffer size test: " + total + " callbacks");
+		return analyzeBufferSize(params, detector);
+	}
+
+	// Streams length callbacks with no load, logging the drift as it goes, to
+	// see how it holds up over a long run
+	void soak(int length) {
+		logUI("soak test: " + length + " callbacks");
+		DriftFeed feed = new DriftFeed(100, true);
+		streamJitter(length, 0, 0, false, feed);
+		logUI("soak test, all " + feed.getCount() + " callbacks:");
+		feed.analyze(0);
+	}
+
+	// Passes streamed timestamps to a DriftEstimator and a LagSlopeMedian, so
+	// that the drift of a run needs no array of it, and if report is set, logs
+	// it every DRIFT_REPORT_INTERVAL callbacks. The estimators number the
+	// timestamps they are given, so lost timestamps start new ones.
+	class DriftFeed implements TimestampRing.Consumer {
+		final boolean report;
+		DriftEstimator estimator;
+		LagSlopeMedian robust;
+		long base;
+		long next;
+		long count;
+
+		DriftFeed(int startupSkip, boolean report) {
+			this.report = report;
+			estimator = new DriftEstimator(startupSkip);
+			robust = new LagSlopeMedian(DRIFT_LAG, DRIFT_WINDOW, startupSkip);
 		}
-		double bufferSizeEst = 64.0 * (n - startupSkip) / count;
+
+		public boolean record(long index, long callbackNs, long cbDoneNs, long threadNs,
+				long renderNs) {
+			if (index != next) {
+				// past the startup, so the new estimators skip nothing
+				logUI("drift estimate restarted after " + (index - next) + " lost timestamps");
+				estimator = new DriftEstimator(0);
+				robust = new LagSlopeMedian(DRIFT_LAG, DRIFT_WINDOW, 0);
+			}
+			if (index == 0 || index != next) base = callbackNs;
+			next = index + 1;
+			estimator.add((callbackNs - base) * 1e-9);
+			robust.add((callbackNs - base) * 1e-9);
+			count++;
+			if (report && count % DRIFT_REPORT_INTERVAL == 0) {
+				logUI("after " + count + " callbacks:");
+				analyze(0);
+			}
+			return false;
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		JitterMeasurement analyze(double forceRate) {
+			return analyzeDrift(estimator, robust, forceRate);
+		}
+	}
+
+	// Runs sljitterRing on a thread of its own, passing the timestamps to consumer
+	// as they are published, and stops the test once consumer wants no more.
+	String streamJitter(final int length, final int delay100us_cb,
+			final int delay100us_render, final boolean pulse, TimestampRing.Consumer consumer) {
+		final String[] result = new String[1];
+		ring.reset();
+		Thread runner = new Thread(new Runnable() {
+			public void run() {
+				result[0] = sljitterRing(ring.getBuffer(), length, delay100us_cb,
+						delay100us_render, pulse);
+			}
+		});
+		runner.start();
+		TimestampRing.Reader reader = ring.newReader();
+		boolean stopped = false;
+		while (runner.isAlive()) {
+			if (reader.poll(consumer) && !stopped) {
+				sljitterStop();
+				stopped = true;
+			}
+			try {
+				runner.join(RING_POLL_MS);
+			} catch (InterruptedException e) {
+				sljitterStop();
+				stopped = true;
+			}
+		}
+		reader.poll(consumer);
+		if (reader.getLost() > 0) {
+			logUI(reader.getLost() + " timestamps lost, the reader fell behind");
+		}
+		return result[0];
+	}
+
+	AudioParams analyzeBufferSize(AudioParams params, PeriodDetector detector) {
+		double bufferSizeEst = detector.getPeriodFrames();
 		logUI("buffer size estimate = " + bufferSizeEst);
+		NumberFormat f = NumberFormat.getInstance();
+		f.setMaximumFractionDigits(2);
+		logUI("bursts of " + detector.getDominantLength() +
+				(detector.getSecondaryLength() > 0 ? "/" + detector.getSecondaryLength() : "") +
+				" callbacks, confidence " + f.format(detector.getConfidence()) +
+				", " + detector.getStalls() + " stalls");
 		// We know the buffer size is always a multiple of 16
 		int bufferSize = 16 * (int) Math.round(bufferSizeEst / 16);
 		AudioParams newParams = new AudioParams(params.sampleRate, bufferSize);
@@ -327,29 +606,30 @@ public class AudioBufferSize extends Activity
 		final int startupSkip = 100;
 		int n = arr.length / 4;
 		// Do linear regression to find timing drift
-		double xys = 0, xs = 0, ys = 0, x2s = 0;
-		int count = n - startupSkip;
-		for (int i = startupSkip; i < n; i++) {
-			double x = i;
-			double y = arr[i];
-			xys += x * y;
-			xs += x;
-			ys += y;
-			x2s += x * x;
-		}
-		double beta = (count * xys - xs * ys) / (count * x2s - xs * xs);
-		double jitRate = forceRate == 0 ? beta : forceRate;
-		//double alpha = (ys - beta * xs) / count;
-		double minJit = 0;
-		double maxJit = 0;
-		for (int i = startupSkip; i < n; i++) {
-			double err = jitRate * i - arr[i];
-			if (i == startupSkip || err < minJit) minJit = err;
-			if (i == startupSkip || err > maxJit) maxJit = err;
+		DriftEstimator estimator = new DriftEstimator(startupSkip);
+		for (int i = 0; i < n; i++) {
+			estimator.add(arr[i]);
 		}
+		if (!ROBUST_DRIFT) return analyzeDrift(estimator, forceRate);
+		double rate = TheilSen.slope(arr, startupSkip, n);
 		JitterMeasurement jm = new JitterMeasurement();
-		jm.rate = beta;
-		jm.jitter = maxJit - minJit;
+		jm.rate = rate;
+		jm.jitter = estimator.getJitter(forceRate == 0 ? rate : forceRate);
+		NumberFormat f = NumberFormat.getInstance();
+		f.setMinimumFractionDigits(3);
+		f.setMaximumFractionDigits(3);
+		logUI("ms per tick = " + f.format(estimator.getRate() * 1000) +
+				" (lr), " + f.format(rate * 1000) + " (ts)" +
+				"; jitter (lr) = " + f.format(estimator.getJitter(forceRate) * 1000) +
+				", (ts) = " + f.format(jm.jitter * 1000));
+		return jm;
+	}
+
+	// Also usable while the estimator is still being fed, for live results
+	JitterMeasurement analyzeDrift(DriftEstimator estimator, double forceRate) {
+		JitterMeasurement jm = new JitterMeasurement();
+		jm.rate = estimator.getRate();
+		jm.jitter = estimator.getJitter(forceRate);
 		NumberFormat f = NumberFormat.getInstance();
 		f.setMinimumFractionDigits(3);
 		f.setMaximumFractionDigits(3);
@@ -358,6 +638,25 @@ public class AudioBufferSize extends Activity
 		return jm;
 	}
 
+	// As above, for streamed timestamps: with ROBUST_DRIFT the rate is the
+	// streaming robust one, which needs no array of the whole run
+	JitterMeasurement analyzeDrift(DriftEstimator estimator, LagSlopeMedian robust,
+			double forceRate) {
+		double rate = robust.getRate();
+		if (!ROBUST_DRIFT || rate == 0) return analyzeDrift(estimator, forceRate);
+		JitterMeasurement jm = new JitterMeasurement();
+		jm.rate = rate;
+		jm.jitter = estimator.getJitter(forceRate == 0 ? rate : forceRate);
+		NumberFormat f = NumberFormat.getInstance();
+		f.setMinimumFractionDigits(3);
+		f.setMaximumFractionDigits(3);
+		logUI("ms per tick = " + f.format(estimator.getRate() * 1000) +
+				" (lr), " + f.format(rate * 1000) + " (lag median)" +
+				"; jitter (lr) = " + f.format(estimator.getJitter(forceRate) * 1000) +
+				", (lag median) = " + f.format(jm.jitter * 1000));
+		return jm;
+	}
+
 	void postResults(String url) {
 		HttpClient httpClient = new DefaultHttpClient();
 		HttpPost httpPost = new HttpPost(url);
@@ -393,6 +692,9 @@ public class AudioBufferSize extends Activity
 	
 	public native void initAudio(int sample_rate, int buf_size);
     public native String sljitter(double ts[], int length, int delay100us_cb, int delay100us_render, boolean pulse);
+    public native String sljitterRing(ByteBuffer ring, int length, int delay100us_cb, int delay100us_render, boolean pulse);
+    public native void sljitterStop();
+    public native long ringPublished(ByteBuffer ring);
     
     public native String test();
     public native String cpuBound();
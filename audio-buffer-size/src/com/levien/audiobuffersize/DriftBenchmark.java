@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.levien.audiobuffersize;
+
+import java.util.Random;
+
+/**
+ * Compares the tick rate estimators on synthetic callback timestamps, for
+ * accuracy when a stall is injected and for speed. Runs on a plain JVM, with no
+ * Android classes.
+ *
+ * Each trace is n callbacks of BUFFER_FRAMES frames at SAMPLE_RATE, each late by
+ * a uniform random jitter of up to JITTER seconds. One stall of the given length
+ * starts at a random point; the callbacks due during it all arrive at its end,
+ * BURST_SPACING apart, as the system catches up. The rate error of each
+ * estimator is averaged over the traces, in ppm of the true rate.
+ *
+ * Usage: java com.levien.audiobuffersize.DriftBenchmark [traces [seed]]
+ */
+class DriftBenchmark {
+	static final int SAMPLE_RATE = 48000;
+	static final int BUFFER_FRAMES = 256;
+	static final double JITTER = 0.001;
+	static final double BURST_SPACING = 0.00002;
+	static final int STARTUP_SKIP = 100;
+	static final int LAG = 512;
+	static final int WINDOW = 512;
+
+	static double[] trace(Random random, int n, double stall) {
+		double rate = (double) BUFFER_FRAMES / SAMPLE_RATE;
+		double[] ts = new double[n];
+		int stallStart = STARTUP_SKIP + random.nextInt(n - STARTUP_SKIP);
+		double stallEnd = stallStart * rate + stall;
+		double prev = 0;
+		for (int i = 0; i < n; i++) {
+			double t = i * rate + random.nextDouble() * JITTER;
+			if (stall > 0 && i >= stallStart) {
+				t = Math.max(t, stallEnd + (i - stallStart) * BURST_SPACING);
+			}
+			ts[i] = Math.max(t, prev);
+			prev = ts[i];
+		}
+		return ts;
+	}
+
+	public static void main(String[] args) {
+		int traces = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		double rate = (double) BUFFER_FRAMES / SAMPLE_RATE;
+		int[] lengths = { 2000, 10000, 100000 };
+		double[] stalls = { 0, 0.05, 0.2 };
+		System.out.println("mean |rate error| in ppm, and time per trace in ms:" +
+				" least squares, half-span median (TheilSen), lag " + LAG + " window " +
+				WINDOW + " median (LagSlopeMedian)");
+		for (int n : lengths) {
+			for (double stall : stalls) {
+				Random random = new Random(seed);
+				double[] error = new double[3];
+				long[] ns = new long[3];
+				for (int k = 0; k < traces; k++) {
+					double[] ts = trace(random, n, stall);
+					long start = System.nanoTime();
+					DriftEstimator ls = new DriftEstimator(STARTUP_SKIP);
+					for (int i = 0; i < n; i++) ls.add(ts[i]);
+					double lsRate = ls.getRate();
+					long t1 = System.nanoTime();
+					double tsRate = TheilSen.slope(ts, STARTUP_SKIP, n);
+					long t2 = System.nanoTime();
+					LagSlopeMedian lag = new LagSlopeMedian(LAG, WINDOW, STARTUP_SKIP);
+					for (int i = 0; i < n; i++) lag.add(ts[i]);
+					double lagRate = lag.getRate();
+					long t3 = System.nanoTime();
+					error[0] += Math.abs(lsRate / rate - 1);
+					error[1] += Math.abs(tsRate / rate - 1);
+					error[2] += Math.abs(lagRate / rate - 1);
+					ns[0] += t1 - start;
+					ns[1] += t2 - t1;
+					ns[2] += t3 - t2;
+				}
+				StringBuilder line = new StringBuilder();
+				line.append(String.format("n=%6d stall %3.0f ms:", n, stall * 1000));
+				for (int e = 0; e < 3; e++) {
+					line.append(String.format(" %8.1f ppm %6.3f ms", error[e] / traces * 1e6,
+							ns[e] / traces * 1e-6));
+				}
+				System.out.println(line);
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.levien.audiobuffersize;
+
+/**
+ * One-pass estimate of the tick rate and jitter of a series of callback timestamps.
+ *
+ * Timestamp i is modeled as t0 + rate * i. The rate is the least squares slope,
+ * kept with Welford-style running means and co-moments, which stay accurate over
+ * hours of timestamps where the naive sums of squares would cancel. The jitter is
+ * the spread (max - min) of the residuals from a line of the current slope. As the
+ * slope changes with every sample, the extremes are found on the upper and lower
+ * convex hulls of the points, which is exact; for timestamps scattered about a line
+ * the hulls stay at a handful of points, however long the run.
+ *
+ * Results may be read at any time, so a run in progress can be shown live.
+ */
+class DriftEstimator {
+	private final int startupSkip;
+	private int index;
+	private long n;
+	private double meanX, meanY, mxx, mxy;
+
+	// Hull points are relative to the first sample used, to keep the cross
+	// products well conditioned with large absolute timestamps.
+	private double x0, y0;
+	private double[] upperX = new double[16], upperY = new double[16];
+	private double[] lowerX = new double[16], lowerY = new double[16];
+	private int upperSize, lowerSize;
+
+	/** The first startupSkip timestamps are ignored. */
+	DriftEstimator(int startupSkip) {
+		this.startupSkip = startupSkip;
+	}
+
+	/** Adds the next timestamp, in seconds. */
+	void add(double t) {
+		int i = index++;
+		if (i < startupSkip) return;
+		if (n == 0) {
+			x0 = i;
+			y0 = t;
+		}
+		double x = i;
+		n++;
+		double dx = x - meanX;
+		meanX += dx / n;
+		meanY += (t - meanY) / n;
+		mxy += dx * (t - meanY);
+		mxx += dx * (x - meanX);
+		addToHulls(x - x0, t - y0);
+	}
+
+	/** Number of timestamps added, including skipped ones. */
+	int getCount() {
+		return index;
+	}
+
+	/** Seconds per tick, or 0 until there are two timestamps past the startup skip. */
+	double getRate() {
+		return mxx > 0 ? mxy / mxx : 0;
+	}
+
+	/**
+	 * Spread in seconds of the residuals from a line of slope rate,
+	 * or of the estimated rate if rate is 0.
+	 */
+	double getJitter(double rate) {
+		if (n == 0) return 0;
+		if (rate == 0) rate = getRate();
+		// err = rate * x - y, as in analyzeDrift: the largest is on the lower
+		// hull and the smallest on the upper hull
+		double maxErr = rate * lowerX[0] - lowerY[0];
+		for (int i = 1; i < lowerSize; i++) {
+			maxErr = Math.max(maxErr, rate * lowerX[i] - lowerY[i]);
+		}
+		double minErr = rate * upperX[0] - upperY[0];
+		for (int i = 1; i < upperSize; i++) {
+			minErr = Math.min(minErr, rate * upperX[i] - upperY[i]);
+		}
+		return maxErr - minErr;
+	}
+
+	/** Number of points kept on the hulls, for checking memory use. */
+	int getHullSize() {
+		return upperSize + lowerSize;
+	}
+
+	// Andrew's monotone chain; x increases with every point, so each point is
+	// pushed once and popped at most once.
+	private void addToHulls(double x, double y) {
+		while (upperSize >= 2 && cross(upperX[upperSize - 2], upperY[upperSize - 2],
+				upperX[upperSize - 1], upperY[upperSize - 1], x, y) >= 0) {
+			upperSize--;
+		}
+		if (upperSize == upperX.length) {
+			upperX = grow(upperX);
+			upperY = grow(upperY);
+		}
+		upperX[upperSize] = x;
+		upperY[upperSize++] = y;
+		while (lowerSize >= 2 && cross(lowerX[lowerSize - 2], lowerY[lowerSize - 2],
+				lowerX[lowerSize - 1], lowerY[lowerSize - 1], x, y) <= 0) {
+			lowerSize--;
+		}
+		if (lowerSize == lowerX.length) {
+			lowerX = grow(lowerX);
+			lowerY = grow(lowerY);
+		}
+		lowerX[lowerSize] = x;
+		lowerY[lowerSize++] = y;
+	}
+
+	// Positive if a, b, c turn counterclockwise
+	private static double cross(double ax, double ay, double bx, double by, double cx, double cy) {
+		return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+	}
+
+	private static double[] grow(double[] a) {
+		double[] b = new double[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.levien.audiobuffersize;
+
+import java.util.Arrays;
+
+/**
+ * Streaming outlier-robust tick rate of a series of callback timestamps.
+ *
+ * Each timestamp past the startup skip and the first lag gives a fixed-lag slope
+ * (t[i] - t[i - lag]) / lag, and the rate is the median of the last window of
+ * those slopes. Memory and the cost of each timestamp are O(lag + window),
+ * whatever the length of the run, so it can follow a soak test of any length.
+ * A stall that delays s callbacks, including its catch-up burst, spoils at most
+ * 2s of the slopes, so the median stays in place while 2s is under half the
+ * window.
+ *
+ * The estimate only uses the last lag + window timestamps, so its scatter for
+ * well-behaved timestamps is that of TheilSen.slope over that many, rather than
+ * over the whole run.
+ */
+class LagSlopeMedian {
+	private final int lag;
+	private final int startupSkip;
+	private final double[] recent;	// the last lag timestamps, by index % lag
+	private final double[] window;	// the last window slopes, by arrival
+	private final double[] sorted;	// the same slopes, in order
+	private int index;
+	private long n;
+	private int size;
+	private int next;
+
+	/** The first startupSkip timestamps are ignored. */
+	LagSlopeMedian(int lag, int window, int startupSkip) {
+		this.lag = lag;
+		this.startupSkip = startupSkip;
+		recent = new double[lag];
+		this.window = new double[window];
+		sorted = new double[window];
+	}
+
+	/** Adds the next timestamp, in seconds. */
+	void add(double t) {
+		int i = index++;
+		if (i < startupSkip) return;
+		int slot = (int) (n++ % lag);
+		if (n > lag) {
+			double slope = (t - recent[slot]) / lag;
+			if (size == window.length) {
+				remove(window[next]);
+			}
+			insert(slope);
+			window[next] = slope;
+			next = next + 1 == window.length ? 0 : next + 1;
+		}
+		recent[slot] = t;
+	}
+
+	/** Seconds per tick, or 0 until there are lag + 1 timestamps past the startup skip. */
+	double getRate() {
+		if (size == 0) return 0;
+		return (size & 1) != 0 ? sorted[size / 2] : 0.5 * (sorted[size / 2 - 1] + sorted[size / 2]);
+	}
+
+	private void insert(double slope) {
+		int at = Arrays.binarySearch(sorted, 0, size, slope);
+		if (at < 0) at = -at - 1;
+		System.arraycopy(sorted, at, sorted, at + 1, size - at);
+		sorted[at] = slope;
+		size++;
+	}
+
+	private void remove(double slope) {
+		int at = Arrays.binarySearch(sorted, 0, size, slope);
+		System.arraycopy(sorted, at + 1, sorted, at, size - at - 1);
+		size--;
+	}
+}
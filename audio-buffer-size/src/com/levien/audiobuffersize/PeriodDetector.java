@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.levien.audiobuffersize;
+
+/**
+ * Streaming detector of the hardware period behind a series of buffer queue
+ * callback timestamps.
+ *
+ * Callbacks are requested for small buffers, so when the hardware period is a
+ * multiple of that size they arrive in bursts, one burst per period. A delta
+ * between callbacks longer than half the nominal callback interval starts a new
+ * burst; the threshold scales with the sample rate and buffer size rather than
+ * being a fixed time. Burst lengths go into a histogram, from which the dominant
+ * and any secondary length are read, e.g. 6 and 7 for 441 frame periods with 64
+ * frame buffers. Bursts much longer than the dominant one are catch-up after a
+ * stall, and are left out of the mean. The period is the mean burst length times
+ * the buffer size.
+ *
+ * The autocorrelation of the deltas over the last MAX_LAG callbacks is kept as an
+ * independent check that does not depend on the threshold: it should be high at
+ * the burst pattern length. Deltas are clipped to two callback intervals for it,
+ * so that a stall does not swamp the pattern. The confidence combines how regular
+ * the bursts are, how precisely the mean is known, and that check, so a caller
+ * can stop measuring as soon as isConfident() is true.
+ */
+class PeriodDetector {
+	static final int MAX_LAG = 64;
+	static final int MAX_BURST = 256;
+	static final double CONFIDENT = 0.9;
+	// need at least this many bursts before being confident
+	static final int MIN_BURSTS = 50;
+
+	private final int bufferFrames;
+	private final int startupSkip;
+	private final double threshold;
+
+	private int skip;
+	private double lastT;
+	private boolean haveLast;
+	private int burstLength;
+	private final long[] burstHistogram = new long[MAX_BURST + 1];
+	private long bursts;
+	private long stalls;
+
+	// Running autocorrelation of the deltas
+	private final double[] recent = new double[MAX_LAG];
+	private int recentCount;
+	private long deltas;
+	private double sum;
+	private final double[] lagSums = new double[MAX_LAG + 1];
+	private final long[] lagCounts = new long[MAX_LAG + 1];
+
+	/**
+	 * Timestamps are of callbacks for bufferFrames at about sampleRate; the first
+	 * startupSkip of each run are ignored.
+	 */
+	PeriodDetector(int sampleRate, int bufferFrames, int startupSkip) {
+		this.bufferFrames = bufferFrames;
+		this.startupSkip = startupSkip;
+		threshold = 0.5 * bufferFrames / sampleRate;
+		startRun();
+	}
+
+	/** Starts a new run of callbacks, not continuous with the previous one. */
+	void startRun() {
+		skip = startupSkip;
+		haveLast = false;
+		burstLength = 0;
+		recentCount = 0;
+	}
+
+	/** Adds the next callback timestamp, in seconds. */
+	void add(double t) {
+		if (skip > 0) {
+			skip--;
+			return;
+		}
+		if (!haveLast) {
+			haveLast = true;
+			lastT = t;
+			return;
+		}
+		double delta = t - lastT;
+		lastT = t;
+		if (delta > threshold) {
+			// the previous burst is complete when the next one starts
+			if (burstLength > 0) {
+				burstHistogram[Math.min(burstLength, MAX_BURST)]++;
+				bursts++;
+			}
+			burstLength = 1;
+		} else if (burstLength > 0) {
+			burstLength++;
+		}
+		addDelta(Math.min(delta, 4 * threshold));
+	}
+
+	private void addDelta(double delta) {
+		deltas++;
+		sum += delta;
+		int n = Math.min(recentCount, MAX_LAG);
+		for (int lag = 1; lag <= n; lag++) {
+			lagSums[lag] += delta * recent[(recentCount - lag) % MAX_LAG];
+			lagCounts[lag]++;
+		}
+		lagSums[0] += delta * delta;
+		lagCounts[0]++;
+		recent[recentCount % MAX_LAG] = delta;
+		recentCount++;
+	}
+
+	/** Normalized autocorrelation of the deltas at lag, in [-1, 1]. */
+	double getAutocorrelation(int lag) {
+		if (lag < 0 || lag > MAX_LAG || lagCounts[lag] == 0 || deltas == 0) return 0;
+		double mean = sum / deltas;
+		double variance = lagSums[0] / lagCounts[0] - mean * mean;
+		if (variance <= 0) return 0;
+		return (lagSums[lag] / lagCounts[lag] - mean * mean) / variance;
+	}
+
+	/** Most frequent burst length in callbacks, or 0 if there are no complete bursts. */
+	int getDominantLength() {
+		int best = 0;
+		for (int i = 1; i <= MAX_BURST; i++) {
+			if (burstHistogram[i] > burstHistogram[best]) best = i;
+		}
+		return best;
+	}
+
+	/** Second most frequent burst length, if it is at least a tenth as frequent, else 0. */
+	int getSecondaryLength() {
+		int dominant = getDominantLength();
+		int best = 0;
+		for (int i = 1; i <= MAX_BURST; i++) {
+			if (i != dominant && burstHistogram[i] > burstHistogram[best]) best = i;
+		}
+		return burstHistogram[best] * 10 >= burstHistogram[dominant] ? best : 0;
+	}
+
+	/** Mean hardware period in frames, excluding catch-up bursts, or 0 if unknown. */
+	double getPeriodFrames() {
+		int dominant = getDominantLength();
+		if (dominant == 0) return 0;
+		long n = 0, callbacks = 0;
+		for (int i = 1; i <= maxRegularLength(dominant); i++) {
+			n += burstHistogram[i];
+			callbacks += i * burstHistogram[i];
+		}
+		return (double) bufferFrames * callbacks / n;
+	}
+
+	/** Number of bursts left out of the mean as catch-up after a stall. */
+	long getStalls() {
+		int dominant = getDominantLength();
+		long n = 0;
+		for (int i = maxRegularLength(dominant) + 1; i <= MAX_BURST; i++) {
+			n += burstHistogram[i];
+		}
+		return n;
+	}
+
+	/** Number of complete bursts seen. */
+	long getBursts() {
+		return bursts;
+	}
+
+	/** Confidence in getPeriodFrames(), from 0 to 1. */
+	double getConfidence() {
+		int dominant = getDominantLength();
+		if (dominant == 0) return 0;
+		int secondary = getSecondaryLength();
+		long n = 0;
+		double s = 0, s2 = 0;
+		for (int i = 1; i <= maxRegularLength(dominant); i++) {
+			n += burstHistogram[i];
+			s += (double) i * burstHistogram[i];
+			s2 += (double) i * i * burstHistogram[i];
+		}
+		if (n < 2) return 0;
+		long usual = burstHistogram[dominant] + (secondary > 0 ? burstHistogram[secondary] : 0);
+		double regularity = (double) usual / bursts;
+		// standard error of the mean period, against the 16 frame quantum
+		double mean = s / n;
+		double sd = Math.sqrt(Math.max(0, s2 / n - mean * mean));
+		double precision = Math.max(0, 1 - sd * bufferFrames / Math.sqrt(n) / 16);
+		// the deltas should repeat with the burst pattern, at the dominant length or
+		// at one of each length; with no bursts there is no pattern to check
+		double agreement = 1;
+		if (dominant > 1 && dominant <= MAX_LAG) {
+			double r = getAutocorrelation(dominant);
+			if (secondary > 0 && dominant + secondary <= MAX_LAG) {
+				r = Math.max(r, getAutocorrelation(dominant + secondary));
+			}
+			agreement = Math.max(0, Math.min(1, 2 * r));
+		}
+		return regularity * precision * agreement;
+	}
+
+	/** True once there are enough bursts and the confidence is at least CONFIDENT. */
+	boolean isConfident() {
+		return bursts >= MIN_BURSTS && getConfidence() >= CONFIDENT;
+	}
+
+	private static int maxRegularLength(int dominant) {
+		return Math.min(MAX_BURST, 4 * dominant);
+	}
+}
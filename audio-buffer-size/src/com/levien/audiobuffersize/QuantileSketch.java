@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.levien.audiobuffersize;
+
+import java.text.NumberFormat;
+
+/**
+ * Streaming sketch of the distribution of non-negative durations, in seconds.
+ *
+ * Values go into logarithmic buckets, each GAMMA times wider than the last, so a
+ * quantile is reported within ACCURACY of its true value relative to that value,
+ * as in DDSketch. The buckets span MIN_VALUE to MAX_VALUE in a fixed array, so
+ * the memory used is independent of the number of values; smaller values count as
+ * MIN_VALUE and larger ones as MAX_VALUE. The exact min and max are kept as well.
+ *
+ * Sketches merge exactly, by adding bucket counts, so the distribution of a
+ * whole series of runs can be had from the sketches of the runs.
+ */
+class QuantileSketch {
+	static final double ACCURACY = 0.01;
+	static final double MIN_VALUE = 1e-6;
+	static final double MAX_VALUE = 1e3;
+	private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY);
+	private static final double LOG_GAMMA = Math.log(GAMMA);
+	private static final int OFFSET = bucket(MIN_VALUE);
+	private static final int BUCKETS = bucket(MAX_VALUE) - OFFSET + 1;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	/** Adds a value. */
+	void add(double x) {
+		int i = bucket(Math.max(MIN_VALUE, Math.min(MAX_VALUE, x))) - OFFSET;
+		counts[i]++;
+		count++;
+		min = Math.min(min, x);
+		max = Math.max(max, x);
+	}
+
+	/** Adds all the values of other to this sketch. */
+	void merge(QuantileSketch other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	/** The smallest value, or 0 if there are none. */
+	double getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	/** The largest value, or 0 if there are none. */
+	double getMax() {
+		return count == 0 ? 0 : max;
+	}
+
+	/**
+	 * The q quantile, for q from 0 to 1, within ACCURACY relative error; or 0 if
+	 * there are no values.
+	 */
+	double getQuantile(double q) {
+		if (count == 0) return 0;
+		if (q <= 0) return min;
+		if (q >= 1) return max;
+		long rank = (long) (q * (count - 1));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen > rank) {
+				// the point of the bucket within ACCURACY of both its ends
+				double x = 2 * Math.pow(GAMMA, i + OFFSET) / (GAMMA + 1);
+				return Math.max(min, Math.min(max, x));
+			}
+		}
+		return max;
+	}
+
+	/** p50, p90, p99, p99.9 and max, in milliseconds. */
+	public String toString() {
+		NumberFormat f = NumberFormat.getInstance();
+		f.setMinimumFractionDigits(3);
+		f.setMaximumFractionDigits(3);
+		return "p50=" + f.format(getQuantile(0.5) * 1000) +
+				" p90=" + f.format(getQuantile(0.9) * 1000) +
+				" p99=" + f.format(getQuantile(0.99) * 1000) +
+				" p99.9=" + f.format(getQuantile(0.999) * 1000) +
+				" max=" + f.format(getMax() * 1000);
+	}
+
+	// Bucket i holds values in (GAMMA^(i-1), GAMMA^i]
+	private static int bucket(double x) {
+		return (int) Math.ceil(Math.log(x) / LOG_GAMMA);
+	}
+}
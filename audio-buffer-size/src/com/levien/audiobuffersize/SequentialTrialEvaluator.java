@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.levien.audiobuffersize;
+
+import java.text.NumberFormat;
+
+/**
+ * Decides a jitter trial from its callbacks as they arrive, so that the trial
+ * can end as soon as the outcome is certain.
+ *
+ * A fixed-length trial of plannedLength callbacks fails if the spread of the
+ * timestamps about a line of the given rate exceeds jitterLimit, or if any
+ * render delay exceeds renderLimit. Both are maxima, so the first callback to
+ * exceed a limit fails the trial here too, and that is the same outcome the
+ * fixed-length trial would have reached. Nothing bounds the callbacks still to
+ * come, so any of them could still fail the trial, and it passes only once all
+ * plannedLength have been added. The callbacks must be one continuous run, as
+ * the spread is taken about a single line.
+ */
+class SequentialTrialEvaluator {
+	static final int UNDECIDED = 0;
+	static final int PASS = 1;
+	static final int FAIL = 2;
+
+	private final double rate;
+	private final double jitterLimit;
+	private final double renderLimit;
+	private final int plannedLength;
+
+	private int skip;
+	private int index;
+	private int count;
+	private int decision = UNDECIDED;
+	// residuals from the line of slope rate
+	private double minResidual, maxResidual;
+	private double maxJitter;
+	private double maxRender;
+
+	/**
+	 * rate is the seconds per callback; the first startupSkip callbacks are
+	 * ignored.
+	 */
+	SequentialTrialEvaluator(double rate, double jitterLimit, double renderLimit,
+			int plannedLength, int startupSkip) {
+		this.rate = rate;
+		this.jitterLimit = jitterLimit;
+		this.renderLimit = renderLimit;
+		this.plannedLength = plannedLength;
+		skip = startupSkip;
+	}
+
+	/**
+	 * Adds the timestamps of the next callback and of the end of its rendering,
+	 * in seconds, and returns the decision so far.
+	 */
+	int add(double callbackTs, double renderTs) {
+		int i = index++;
+		if (decision != UNDECIDED) return decision;
+		if (skip > 0) {
+			skip--;
+			return decision;
+		}
+		count++;
+		double residual = callbackTs - rate * i;
+		double render = renderTs - callbackTs;
+		if (count == 1) {
+			minResidual = maxResidual = residual;
+		} else {
+			minResidual = Math.min(minResidual, residual);
+			maxResidual = Math.max(maxResidual, residual);
+		}
+		maxJitter = maxResidual - minResidual;
+		maxRender = Math.max(maxRender, render);
+		if (maxJitter > jitterLimit || render > renderLimit) {
+			decision = FAIL;
+		} else if (count >= plannedLength) {
+			decision = PASS;
+		}
+		return decision;
+	}
+
+	int getDecision() {
+		return decision;
+	}
+
+	/** Number of callbacks used, after the startup skip. */
+	int getCount() {
+		return count;
+	}
+
+	double getJitter() {
+		return maxJitter;
+	}
+
+	double getMaxRender() {
+		return maxRender;
+	}
+
+	public String toString() {
+		NumberFormat f = NumberFormat.getInstance();
+		f.setMinimumFractionDigits(3);
+		f.setMaximumFractionDigits(3);
+		String result = decision == PASS ? "pass" : decision == FAIL ? "fail" : "undecided";
+		return result + " after " + count + " of " + plannedLength + " callbacks" +
+				"; jitter = " + f.format(maxJitter * 1000) +
+				", renderEnd = " + f.format(maxRender * 1000);
+	}
+}
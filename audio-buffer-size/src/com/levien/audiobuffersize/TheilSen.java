@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.levien.audiobuffersize;
+
+import java.util.Arrays;
+
+/**
+ * Outlier-robust tick rate of a series of callback timestamps.
+ *
+ * This is not the full Theil-Sen estimator, which takes the median of the slopes
+ * of all n(n - 1)/2 pairs. It is the median of the slopes of the n/2 disjoint
+ * pairs half the series apart, (t[i + h] - t[i]) / h, a single-lag median of
+ * differences, at O(n log n) cost. Each timestamp is in only one pair, so the
+ * estimate is not moved at all unless a quarter or more of the timestamps are
+ * outliers. A long scheduler stall delays only the few callbacks around it, so
+ * it has no effect, where it tilts a least squares fit. The price is efficiency:
+ * for Gaussian jitter its variance is about twice that of least squares, where
+ * the full estimator's is within 10%. DriftBenchmark compares them.
+ *
+ * It needs the whole series; LagSlopeMedian is a streaming alternative.
+ */
+class TheilSen {
+	/** Seconds per tick from timestamps ts[start] to ts[end - 1], or 0 if fewer than 2. */
+	static double slope(double[] ts, int start, int end) {
+		int h = (end - start) / 2;
+		if (h < 1) return 0;
+		double[] slopes = new double[h];
+		for (int i = 0; i < h; i++) {
+			slopes[i] = (ts[start + i + h] - ts[start + i]) / h;
+		}
+		Arrays.sort(slopes);
+		return (h & 1) != 0 ? slopes[h / 2] : 0.5 * (slopes[h / 2 - 1] + slopes[h / 2]);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.levien.audiobuffersize;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Ring of the timestamps of a jitter test, in a direct buffer shared with native
+ * code, so that they can be read while the test runs and without copying.
+ *
+ * Each record is the four timestamps of one callback, in nanoseconds of
+ * CLOCK_MONOTONIC: callback start, callback done, render thread start and render
+ * done. The buffer is a header of two longs, the count of records published and
+ * the capacity, followed by one array of capacity longs per series (struct of
+ * arrays), in native byte order. Record i is in slot i % capacity of each array.
+ * The layout is shared with audiobufferjni.c.
+ *
+ * The producer writes a record's slots and then stores the new published count
+ * with release ordering. Native code does that from the render thread; publish()
+ * does it in Java, for tests and simulation. A reader polls for records up to
+ * the published count. It must keep within half the capacity, as the callback
+ * side may be writing slots ahead of the published count; records that fall
+ * further behind are skipped and counted as lost.
+ */
+class TimestampRing {
+	static final int CALLBACK = 0;
+	static final int CB_DONE = 1;
+	static final int THREAD = 2;
+	static final int RENDER = 3;
+	static final int SERIES = 4;
+	static final int HEADER_LONGS = 2;
+
+	/** Receives the records read from a ring. */
+	interface Consumer {
+		/** Receives record index; returns true if no more records are wanted. */
+		boolean record(long index, long callbackNs, long cbDoneNs, long threadNs,
+				long renderNs);
+	}
+
+	private final ByteBuffer buffer;
+	private final LongBuffer longs;
+	private final int capacity;
+	private final int mask;
+	// the published count, for the Java producer
+	private volatile long published;
+
+	/** capacity is rounded up to a power of 2. */
+	TimestampRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity));
+		this.capacity = size < capacity ? size * 2 : size;
+		mask = this.capacity - 1;
+		buffer = ByteBuffer.allocateDirect((HEADER_LONGS + SERIES * this.capacity) * 8)
+				.order(ByteOrder.nativeOrder());
+		longs = buffer.asLongBuffer();
+		longs.put(1, this.capacity);
+	}
+
+	/** The buffer to pass to native code. */
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	/** Empties the ring, before a producer starts. */
+	void reset() {
+		published = 0;
+		longs.put(0, 0);
+	}
+
+	/**
+	 * The number of records published. Native producers publish the count in the
+	 * buffer, and must be read with acquire ordering, which Java cannot do on a
+	 * buffer; rings filled from native code override this to read it natively.
+	 */
+	long getPublished() {
+		return published;
+	}
+
+	/** Publishes the next record; for a producer in Java. */
+	void publish(long callbackNs, long cbDoneNs, long threadNs, long renderNs) {
+		long i = published;
+		int slot = HEADER_LONGS + (int) (i & mask);
+		longs.put(slot + CALLBACK * capacity, callbackNs);
+		longs.put(slot + CB_DONE * capacity, cbDoneNs);
+		longs.put(slot + THREAD * capacity, threadNs);
+		longs.put(slot + RENDER * capacity, renderNs);
+		longs.put(0, i + 1);
+		published = i + 1;
+	}
+
+	Reader newReader() {
+		return new Reader();
+	}
+
+	/** Reads the records of a ring in order, from the first. */
+	class Reader {
+		private long position;
+		private long lost;
+		private boolean done;
+
+		/**
+		 * Passes the records published since the last poll to consumer, until it
+		 * wants no more, and returns true once it has said so.
+		 */
+		boolean poll(Consumer consumer) {
+			long end = getPublished();
+			while (!done && position < end) {
+				long oldest = end - capacity / 2;
+				if (position < oldest) {
+					lost += oldest - position;
+					position = oldest;
+				}
+				int slot = HEADER_LONGS + (int) (position & mask);
+				done = consumer.record(position, longs.get(slot + CALLBACK * capacity),
+						longs.get(slot + CB_DONE * capacity),
+						longs.get(slot + THREAD * capacity),
+						longs.get(slot + RENDER * capacity));
+				position++;
+			}
+			return done;
+		}
+
+		/** The index of the next record to read. */
+		long getPosition() {
+			return position;
+		}
+
+		/** Records skipped because the reader fell too far behind. */
+		long getLost() {
+			return lost;
+		}
+	}
+}